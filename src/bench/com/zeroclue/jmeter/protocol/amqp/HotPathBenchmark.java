@@ -0,0 +1,147 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import org.apache.jmeter.config.Arguments;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Measures the plugin's own cost per message on the publish and consume
+ * paths, against a channel that does nothing, so the broker and network are
+ * left out. Run with "ant bench"; it is not part of the plugin jar.
+ *
+ * Every path is run for a warm-up round and then for the measured rounds,
+ * each reporting operations per second and the bytes allocated per
+ * operation by the benchmark thread.
+ */
+public final class HotPathBenchmark {
+
+    private static final int WARMUP_OPS = 2000000;
+    private static final int MEASURED_OPS = 2000000;
+    private static final int ROUNDS = 5;
+
+    private static final byte[] BODY = new byte[256];
+
+    // read by the benchmarks, so the JIT cannot drop their work
+    private static long sink;
+
+    private HotPathBenchmark() {
+    }
+
+    private interface Path {
+        void run(int ops) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!ThreadAllocation.isSupported()) {
+            System.out.println("This JVM does not track allocations per thread, bytes/op are not reported");
+        }
+        final Channel channel = noOpChannel();
+        final AMQPPublisher publisher = publisher(channel);
+
+        measure("publisher properties", new Path() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    Map<String, Object> headers = publisher.getMessageHeaders();
+                    sink += publisher.getMessageProperties(headers).getDeliveryMode();
+                }
+            }
+        });
+        measure("publisher message bytes", new Path() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    sink += publisher.getMessageBytes().length;
+                }
+            }
+        });
+        measure("publish", new Path() {
+            @Override
+            public void run(int ops) throws Exception {
+                for (int i = 0; i < ops; i++) {
+                    Map<String, Object> headers = publisher.getMessageHeaders();
+                    AMQP.BasicProperties properties = publisher.getMessageProperties(headers);
+                    channel.basicPublish("", publisher.nextRoutingKey(), properties, publisher.nextMessageBytes());
+                }
+            }
+        });
+
+        final RingBufferConsumer consumer = new RingBufferConsumer(channel, 1024, RingBufferConsumer.WaitStrategy.SPIN, false);
+        final AckBatcher acks = new AckBatcher(channel, 100, 1000);
+        final AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().build();
+        measure("consume", new Path() {
+            @Override
+            public void run(int ops) throws Exception {
+                for (int i = 0; i < ops; i++) {
+                    // the connection thread's part, then the sampler thread's, with read response on
+                    consumer.handleDelivery("bench", new Envelope(i + 1, false, "", "key"), properties, BODY);
+                    consumer.await(0);
+                    byte[] body = consumer.getBody();
+                    long deliveryTag = consumer.getEnvelope().getDeliveryTag();
+                    consumer.release();
+                    String response = new String(body);
+                    sink += response.length();
+                    acks.delivered(deliveryTag);
+                }
+            }
+        });
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void measure(String name, Path path) throws Exception {
+        path.run(WARMUP_OPS);
+        for (int round = 1; round <= ROUNDS; round++) {
+            long allocatedBefore = ThreadAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            path.run(MEASURED_OPS);
+            long elapsed = System.nanoTime() - start;
+            long allocated = ThreadAllocation.allocatedBytes() - allocatedBefore;
+            System.out.println(String.format("%-26s round %d: %,12.0f ops/s %10s bytes/op", name, round,
+                    MEASURED_OPS * 1e9 / elapsed,
+                    ThreadAllocation.isSupported() ? String.format("%.1f", (double) allocated / MEASURED_OPS) : "-"));
+        }
+    }
+
+    private static AMQPPublisher publisher(Channel channel) {
+        AMQPPublisher publisher = new AMQPPublisher();
+        publisher.setName("bench");
+        publisher.setMessage("a message of the size a small event might have, give or take a few bytes");
+        publisher.setMessageRoutingKey("bench.key");
+        Arguments headers = new Arguments();
+        headers.addArgument("source", "bench");
+        headers.addArgument("type", "event");
+        publisher.setHeaders(headers);
+        publisher.setChannel(channel);
+        return publisher;
+    }
+
+    /*
+     * A channel on which every call does nothing, answering with a default value.
+     */
+    private static Channel noOpChannel() {
+        return (Channel) Proxy.newProxyInstance(HotPathBenchmark.class.getClassLoader(), new Class[]{Channel.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        Class<?> type = method.getReturnType();
+                        if (type == boolean.class) {
+                            return "isOpen".equals(method.getName());
+                        }
+                        if (type == int.class) {
+                            return 0;
+                        }
+                        if (type == long.class) {
+                            return 0L;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
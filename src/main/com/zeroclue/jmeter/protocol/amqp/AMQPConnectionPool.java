@@ -0,0 +1,214 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Process-wide pool of AMQP connections shared between sampler threads.
+ *
+ * Connections are grouped by a key describing everything that makes two
+ * connections interchangeable (hosts, port, virtual host, credentials and TLS
+ * settings). Every sampler thread opens its own channels on the connection it
+ * leased, and a lease counts the channels the thread keeps open, so a
+ * connection carries at most channelsPerConnection of them; the number of
+ * JMeter threads and the number of broker connections can be tuned
+ * independently. Short-lived channels, such as those deleting a queue, are
+ * not counted. A lease never waits: when no connection has room for it, a
+ * new connection is opened.
+ *
+ * A connection is closed once its last lease has been released.
+ */
+public final class AMQPConnectionPool {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final Map<String, Pool> pools = new HashMap<String, Pool>();
+    private static final Map<Connection, Pool> owners = new ConcurrentHashMap<Connection, Pool>();
+
+    private static final AtomicLong acquisitions = new AtomicLong();
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong totalOpenNanos = new AtomicLong();
+    private static final AtomicLong maxOpenNanos = new AtomicLong();
+    private static final AtomicLong openConnections = new AtomicLong();
+    private static final AtomicLong peakConnections = new AtomicLong();
+    private static final AtomicLong channels = new AtomicLong();
+
+    private AMQPConnectionPool() {
+    }
+
+    /**
+     * Lease a connection for the given key, opening a new one if no pooled
+     * connection has room for the channels left.
+     *
+     * @param key the connection key, see {@link AMQPSampler#getConnectionKey()}
+     * @param channelsPerConnection the maximum number of channels per connection
+     * @param channelCount the number of channels the lease holder keeps open; a lease of more
+     *        channels than a connection may carry gets a connection of its own
+     * @param factory the factory used when a new connection is required
+     * @param addresses the broker addresses used when a new connection is required
+     * @return an open connection which must be handed back to {@link #release(Connection, int)}
+     * @throws IOException if a new connection could not be opened
+     */
+    public static Connection acquire(String key, int channelsPerConnection, int channelCount, ConnectionFactory factory,
+                                     Address[] addresses) throws IOException {
+        Pool pool = getPool(key);
+        Connection connection = pool.lease(Math.max(1, channelsPerConnection), Math.max(1, channelCount), factory, addresses);
+        acquisitions.incrementAndGet();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Acquired pooled connection for " + channelCount + " channels, " + getStats());
+        }
+        return connection;
+    }
+
+    /**
+     * Hand back a connection obtained from {@link #acquire}. The connection is
+     * closed when no other sampler holds a lease on it.
+     *
+     * @param connection the leased connection
+     * @param channelCount the number of channels it was leased for
+     */
+    public static void release(Connection connection, int channelCount) {
+        Pool pool = owners.get(connection);
+        if (pool == null) {
+            // already discarded after it closed unexpectedly
+            log.debug("Released connection is no longer pooled: " + connection);
+            return;
+        }
+        pool.release(connection, Math.max(1, channelCount));
+    }
+
+    /**
+     * @return a one line summary of the pool state
+     */
+    public static String getStats() {
+        long opens = opened.get();
+        long open = openConnections.get();
+        long avgOpen = opens == 0 ? 0 : totalOpenNanos.get() / opens;
+        return "open connections: " + open
+                + ", peak connections: " + peakConnections.get()
+                + ", channels per connection: " + (open == 0 ? 0 : (double) channels.get() / open)
+                + ", connection open time avg/max: " + TimeUnit.NANOSECONDS.toMicros(avgOpen)
+                + "/" + TimeUnit.NANOSECONDS.toMicros(maxOpenNanos.get()) + "us"
+                + " over " + opens + " connections opened for " + acquisitions.get() + " acquisitions";
+    }
+
+    private static synchronized Pool getPool(String key) {
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            pool = new Pool();
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /*
+     * Connections sharing a single key. Opening a connection happens while
+     * holding the pool lock so that concurrent samplers ramping up do not
+     * race each other into opening more connections than needed.
+     */
+    private static final class Pool {
+        private final List<PooledConnection> connections = new ArrayList<PooledConnection>();
+
+        synchronized Connection lease(int channelsPerConnection, int channelCount, ConnectionFactory factory,
+                                      Address[] addresses) throws IOException {
+            PooledConnection candidate = null;
+            for (Iterator<PooledConnection> it = connections.iterator(); it.hasNext(); ) {
+                PooledConnection pooled = it.next();
+                if (!pooled.connection.isOpen()) {
+                    log.warn("Discarding closed pooled connection: " + pooled.connection.getCloseReason());
+                    it.remove();
+                    discard(pooled);
+                    continue;
+                }
+                if (candidate == null && pooled.channels + channelCount <= channelsPerConnection) {
+                    candidate = pooled;
+                }
+            }
+
+            if (candidate == null) {
+                long start = System.nanoTime();
+                candidate = new PooledConnection(factory.newConnection(addresses));
+                long openNanos = System.nanoTime() - start;
+                opened.incrementAndGet();
+                totalOpenNanos.addAndGet(openNanos);
+                updateMax(maxOpenNanos, openNanos);
+                connections.add(candidate);
+                owners.put(candidate.connection, this);
+                updateMax(peakConnections, openConnections.incrementAndGet());
+                log.info("Opened pooled connection " + candidate.connection + ", " + connections.size() + " for this key");
+            }
+
+            candidate.leases++;
+            candidate.channels += channelCount;
+            channels.addAndGet(channelCount);
+            return candidate.connection;
+        }
+
+        synchronized void release(Connection connection, int channelCount) {
+            for (Iterator<PooledConnection> it = connections.iterator(); it.hasNext(); ) {
+                PooledConnection pooled = it.next();
+                if (pooled.connection != connection) {
+                    continue;
+                }
+                pooled.leases--;
+                pooled.channels -= channelCount;
+                channels.addAndGet(-channelCount);
+                if (pooled.leases == 0) {
+                    it.remove();
+                    discard(pooled);
+                    try {
+                        if (connection.isOpen()) {
+                            connection.close();
+                        }
+                    } catch (IOException e) {
+                        log.error("Failed to close pooled connection", e);
+                    }
+                    if (openConnections.get() == 0) {
+                        log.info("Connection pool drained, " + getStats());
+                    }
+                }
+                return;
+            }
+        }
+
+        private void discard(PooledConnection pooled) {
+            owners.remove(pooled.connection);
+            openConnections.decrementAndGet();
+            channels.addAndGet(-pooled.channels);
+            pooled.leases = 0;
+            pooled.channels = 0;
+        }
+    }
+
+    private static final class PooledConnection {
+        private final Connection connection;
+        private int leases;
+        private int channels;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+}
@@ -2,25 +2,42 @@ package com.zeroclue.jmeter.protocol.amqp;
 
 import java.io.IOException;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
-import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 
-public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStateListener {
+public class AMQPConsumer extends AMQPSampler implements Interruptible {
     private static final int DEFAULT_PREFETCH_COUNT = 0; // unlimited
 
     public static final boolean DEFAULT_READ_RESPONSE = true;
     public static final String DEFAULT_PREFETCH_COUNT_STRING = Integer.toString(DEFAULT_PREFETCH_COUNT);
 
+    public static final int DEFAULT_RING_BUFFER_SIZE = 1024;
+    public static final String DEFAULT_RING_BUFFER_SIZE_STRING = Integer.toString(DEFAULT_RING_BUFFER_SIZE);
+    public static final String DEFAULT_WAIT_STRATEGY = RingBufferConsumer.WaitStrategy.BLOCK.name();
+    public static final String DEFAULT_TIMESTAMP = SendTimestamps.MODE_NONE;
+
+    public static final int DEFAULT_CONSUMERS = 1;
+    public static final String DEFAULT_CONSUMERS_STRING = Integer.toString(DEFAULT_CONSUMERS);
+    public static final int DEFAULT_WORKERS = 1;
+    public static final String DEFAULT_WORKERS_STRING = Integer.toString(DEFAULT_WORKERS);
+
+    public static final int DEFAULT_ACK_BATCH_SIZE = 1; // an ack per delivery
+    public static final String DEFAULT_ACK_BATCH_SIZE_STRING = Integer.toString(DEFAULT_ACK_BATCH_SIZE);
+    public static final int DEFAULT_ACK_BATCH_DELAY = 100;
+    public static final String DEFAULT_ACK_BATCH_DELAY_STRING = Integer.toString(DEFAULT_ACK_BATCH_DELAY);
+
     private static final long serialVersionUID = 7480863561320459091L;
 
     private static final Logger log = LoggingManager.getLoggerForClass();
@@ -31,10 +48,31 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     private static final String PURGE_QUEUE = "AMQPConsumer.PurgeQueue";
     private static final String AUTO_ACK = "AMQPConsumer.AutoAck";
     private static final String RECEIVE_TIMEOUT = "AMQPConsumer.ReceiveTimeout";
+    private static final String RING_BUFFER_SIZE = "AMQPConsumer.RingBufferSize";
+    private static final String WAIT_STRATEGY = "AMQPConsumer.WaitStrategy";
+    private static final String TIMESTAMP = "AMQPConsumer.Timestamp";
+    private static final String CLOCK_OFFSET = "AMQPConsumer.ClockOffset";
+    private static final String CONSUMERS = "AMQPConsumer.Consumers";
+    private static final String WORKERS = "AMQPConsumer.Workers";
+    private static final String ACK_BATCH_SIZE = "AMQPConsumer.AckBatchSize";
+    private static final String ACK_BATCH_DELAY = "AMQPConsumer.AckBatchDelay";
+    private static final String DECOMPRESS = "AMQPConsumer.Decompress";
+    private static final String VERIFY_INTEGRITY = "AMQPConsumer.VerifyIntegrity";
 
     private transient Channel channel;
-    private transient QueueingConsumer consumer;
+    private transient RingBufferConsumer consumer;
     private transient String consumerTag;
+    private transient LatencyHistogram sampleLatency;
+    private transient LatencyHistogram totalLatency;
+    private transient LatencyHistogram receiveLatency;
+    private transient LatencyHistogram decompressTime;
+    private transient SequenceTracker integrity;
+    private transient long[] integrityCounts;
+    private transient ConsumerDispatcher dispatcher;
+    private transient AckBatcher acks;
+    private transient LatencyHistogram ackLag;
+    private transient long ackFramesTotal;
+    private transient long acksTotal;
 
     public AMQPConsumer(){
         super();
@@ -55,12 +93,17 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         try {
             initChannel();
 
+            if (isDispatching()) {
+                if (dispatcher == null) {
+                    startDispatcher();
+                }
+            }
            // only do this once per thread. Otherwise it slows down the consumption by appx 50%
-            if (consumer == null) {
+            else if (consumer == null) {
                 log.info("Creating consumer");
-                consumer = new QueueingConsumer(channel);
+                consumer = new RingBufferConsumer(channel, getRingBufferSizeAsInt(), getWaitStrategyValue(), autoAck());
             }
-            if (consumerTag == null) {
+            if (dispatcher == null && consumerTag == null) {
                 log.info("Starting basic consumer");
                 consumerTag = channel.basicConsume(getQueue(), autoAck(), consumer);
             }
@@ -71,28 +114,88 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         }
 
         result.setSampleLabel(getTitle());
+        if (dispatcher != null) {
+            return sampleDispatched(result);
+        }
         /*
          * Perform the sampling
          */
 
+        String timestamp = getTimestamp();
+        boolean measureLatency = !SendTimestamps.MODE_NONE.equals(timestamp);
+        boolean prefixed = SendTimestamps.MODE_BODY.equals(timestamp);
+        long clockOffsetNanos = TimeUnit.MILLISECONDS.toNanos(getClockOffsetAsLong());
+        if (measureLatency && sampleLatency == null) {
+            sampleLatency = new LatencyHistogram();
+            totalLatency = new LatencyHistogram();
+        }
+        HistogramLog.Recorder receiveRecorder = getRecorder("receive");
+        if (receiveRecorder != null && receiveLatency == null) {
+            receiveLatency = new LatencyHistogram();
+        }
+        if (!autoAck() && getAckBatchSizeAsInt() > 1 && (acks == null || !acks.isFor(channel))) {
+            acks = new AckBatcher(channel, getAckBatchSizeAsInt(), getAckBatchDelayAsInt());
+            if (ackLag == null) {
+                ackLag = new LatencyHistogram();
+            }
+        }
+
+        SequenceTracker tracker = getSequenceTracker();
+        boolean decompress = getDecompressAsBoolean();
+        if (decompress && decompressTime == null) {
+            decompressTime = new LatencyHistogram();
+        }
+        long corruptBodies = 0;
+
+        MessageSubResults subResults = getMessageSubResults();
+
         // aggregate samples.
         int loop = getIterationsAsInt();
         result.sampleStart(); // Start timing
-        QueueingConsumer.Delivery delivery = null;
         try {
             for (int idx = 0; idx < loop; idx++) {
-                delivery = consumer.nextDelivery(getReceiveTimeoutAsInt());
-
-                if(delivery == null){
+                boolean keep = subResults != null && subResults.next();
+                long waitStart = receiveRecorder == null && !keep ? 0 : System.nanoTime();
+                if (!awaitDelivery(getReceiveTimeoutAsInt())) {
                     result.setResponseMessage("timed out");
                     return result;
                 }
+                if (receiveRecorder != null) {
+                    receiveLatency.record(System.nanoTime() - waitStart);
+                }
+                byte[] body = consumer.getBody();
+                long deliveryTag = consumer.getEnvelope().getDeliveryTag();
+                if (measureLatency) {
+                    long sent = SendTimestamps.read(timestamp, consumer.getProperties(), body);
+                    if (sent >= 0) {
+                        sampleLatency.record(SendTimestamps.now() - clockOffsetNanos - sent);
+                    }
+                }
+                String encoding = consumer.getProperties() == null ? null : consumer.getProperties().getContentEncoding();
+                if (tracker != null) {
+                    tracker.check(consumer.getProperties(), body);
+                }
+                consumer.release();
+
+                // timed apart from the receive, which ended with the delivery
+                byte[] decompressed = null;
+                if (decompress && PayloadCompression.isCompressed(encoding)) {
+                    int offset = prefixed && body.length >= SendTimestamps.PREFIX_LENGTH ? SendTimestamps.PREFIX_LENGTH : 0;
+                    long decompressStart = System.nanoTime();
+                    try {
+                        decompressed = PayloadCompression.decompress(body, offset, encoding);
+                        decompressTime.record(System.nanoTime() - decompressStart);
+                    } catch (IOException e) {
+                        log.debug("Failed to decompress a " + encoding + " body", e);
+                        corruptBodies++;
+                    }
+                }
 
                 /*
                  * Set up the sample result details
                  */
                 if (getReadResponseAsBoolean()) {
-                    String response = new String(delivery.getBody());
+                    String response = decompressed != null ? new String(decompressed) : toResponse(body, prefixed);
                     result.setSamplerData(response);
                     result.setResponseMessage(response);
                 }
@@ -100,8 +203,18 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
                     result.setSamplerData("Read response is false.");
                 }
 
-                if(!autoAck())
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                if (acks != null)
+                    acks.delivered(deliveryTag);
+                else if(!autoAck())
+                    channel.basicAck(deliveryTag, false);
+
+                if (keep) {
+                    subResults.add(waitStart, System.nanoTime() - waitStart, body.length, deliveryTag);
+                }
+            }
+            if (corruptBodies > 0) {
+                result.setResponseMessage(corruptBodies + " of " + loop + " bodies failed to decompress");
+                return result;
             }
 
             result.setResponseData("OK", null);
@@ -139,6 +252,28 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
             result.setResponseMessage(e.getMessage());
         } finally {
             result.sampleEnd(); // End timimg
+            if (measureLatency) {
+                addLatencyStats(result);
+            }
+            if (receiveRecorder != null) {
+                receiveRecorder.add(receiveLatency);
+                receiveLatency.reset();
+            }
+            if (acks != null) {
+                // also after a timeout, should the batch have fallen due while the last delivery was awaited
+                flushAcksIfDue();
+                addAckStats(result);
+            }
+            if (decompress) {
+                addDecompressStats(result, corruptBodies);
+            }
+            if (tracker != null) {
+                addIntegrityStats(result, tracker);
+            }
+            addRecoveryStats(result);
+            if (subResults != null) {
+                subResults.attachTo(result, getTitle());
+            }
         }
 
         trace("AMQPConsumer.sample ended");
@@ -146,6 +281,214 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return result;
     }
 
+    /*
+     * Wait for the next delivery, acknowledging the pending batch first
+     * should it fall due before a delivery arrives.
+     */
+    private boolean awaitDelivery(int timeoutMillis) throws InterruptedException, IOException {
+        long due = acks == null ? -1 : acks.millisUntilDue();
+        if (due >= 0 && due < timeoutMillis) {
+            if (consumer.await(due)) {
+                return true;
+            }
+            acks.flush();
+            return consumer.await(timeoutMillis - due);
+        }
+        return consumer.await(timeoutMillis);
+    }
+
+    private void addAckStats(SampleResult result) {
+        ackLag.reset();
+        long[] counts = acks.drain(ackLag);
+        ackFramesTotal += counts[0];
+        acksTotal += counts[1];
+        addResponseHeader(result, "ack-frames", counts[0]);
+        addResponseHeader(result, "acks", counts[1]);
+        addResponseHeader(result, "ack-lag", ackLag.summary());
+        HistogramLog.Recorder recorder = getRecorder("ack");
+        if (recorder != null) {
+            recorder.add(ackLag);
+        }
+    }
+
+    private void addDecompressStats(SampleResult result, long corruptBodies) {
+        addResponseHeader(result, "decompress-time", decompressTime.summary());
+        addResponseHeader(result, "corrupt-bodies", corruptBodies);
+        HistogramLog.Recorder recorder = getRecorder("decompress");
+        if (recorder != null) {
+            recorder.add(decompressTime);
+        }
+        decompressTime.reset();
+    }
+
+    /*
+     * Report what the sampler's threads found since the last report; with
+     * competing consumers a sample may carry counts of deliveries its thread
+     * did not receive.
+     */
+    private void addIntegrityStats(SampleResult result, SequenceTracker tracker) {
+        if (integrityCounts == null) {
+            integrityCounts = new long[SequenceTracker.COUNTERS];
+        }
+        Arrays.fill(integrityCounts, 0);
+        tracker.drain(integrityCounts);
+        for (int i = 0; i < SequenceTracker.COUNTERS; i++) {
+            addResponseHeader(result, "integrity-" + SequenceTracker.nameOf(i), integrityCounts[i]);
+        }
+    }
+
+    private SequenceTracker getSequenceTracker() {
+        if (integrity == null && getVerifyIntegrityAsBoolean()) {
+            integrity = SequenceTracker.forSampler(getTitle());
+        }
+        return integrity;
+    }
+
+    private void flushAcksIfDue() {
+        try {
+            acks.flushIfDue();
+        } catch (IOException e) {
+            log.warn("Failed to acknowledge a batch of deliveries", e);
+        } catch (ShutdownSignalException e) {
+            log.debug("Channel closed before a batch of deliveries was acknowledged", e);
+        }
+    }
+
+    private void flushAcks() {
+        if (acks != null) {
+            try {
+                acks.flush();
+            } catch (IOException e) {
+                log.warn("Failed to acknowledge the remaining deliveries", e);
+            }
+        }
+    }
+
+    /*
+     * Wait for the dispatcher's workers to process the deliveries of one
+     * sample, reporting the throughput and how the deliveries were spread.
+     */
+    private SampleResult sampleDispatched(SampleResult result) {
+        boolean measureLatency = !SendTimestamps.MODE_NONE.equals(getTimestamp());
+        if (measureLatency && sampleLatency == null) {
+            sampleLatency = new LatencyHistogram();
+            totalLatency = new LatencyHistogram();
+        }
+
+        ConsumerDispatcher active = dispatcher; // kept for the stats should it fail below
+        int loop = getIterationsAsInt();
+        result.sampleStart(); // Start timing
+        long start = System.nanoTime();
+        long from = active.getProcessed();
+        try {
+            if (!active.awaitProcessed(from + loop, getReceiveTimeoutAsInt())) {
+                result.setResponseMessage("timed out");
+            } else {
+                byte[] body = active.getLastBody();
+                if (getReadResponseAsBoolean() && body != null) {
+                    String response = toResponse(body, SendTimestamps.MODE_BODY.equals(getTimestamp()));
+                    result.setSamplerData(response);
+                    result.setResponseMessage(response);
+                } else {
+                    result.setSamplerData("Read response is false.");
+                }
+                result.setResponseData("OK", null);
+                result.setDataType(SampleResult.TEXT);
+                result.setResponseCodeOK();
+                result.setSuccessful(true);
+            }
+        } catch (ShutdownSignalException e) {
+            log.warn("AMQP consumer failed to consume", e);
+            result.setResponseCode("400");
+            result.setResponseMessage(e.getMessage());
+            stopDispatcher();
+            interrupt();
+        } catch (ConsumerCancelledException e) {
+            log.warn("AMQP consumer failed to consume", e);
+            result.setResponseCode("300");
+            result.setResponseMessage(e.getMessage());
+            stopDispatcher();
+            interrupt();
+        } catch (InterruptedException e) {
+            log.info("interuppted while attempting to consume");
+            result.setResponseCode("200");
+            result.setResponseMessage(e.getMessage());
+        } catch (IllegalStateException e) {
+            log.warn("AMQP consumer failed to consume", e);
+            result.setResponseCode("100");
+            result.setResponseMessage(e.getMessage());
+            stopDispatcher();
+        } finally {
+            result.sampleEnd(); // End timimg
+            long processed = active.getProcessed() - from;
+            long elapsed = System.nanoTime() - start;
+            addResponseHeader(result, "deliveries", processed);
+            addResponseHeader(result, "throughput", elapsed > 0 ? processed * 1000000000L / elapsed : 0);
+            addResponseHeader(result, "deliveries-per-worker", Arrays.toString(active.drainWorkerCounts()));
+            if (measureLatency) {
+                active.drainLatency(sampleLatency);
+                addLatencyStats(result);
+            }
+            if (getSequenceTracker() != null) {
+                addIntegrityStats(result, getSequenceTracker());
+            }
+            addRecoveryStats(result);
+        }
+        return result;
+    }
+
+    private boolean isDispatching() {
+        return getConsumersAsInt() > 1 || getWorkersAsInt() > 1;
+    }
+
+    /**
+     * {@inheritDoc} Dispatching, a channel of each consumer besides the sampler's own.
+     */
+    @Override
+    protected int getChannelsPerThread() {
+        return isDispatching() ? 1 + getConsumersAsInt() : 1;
+    }
+
+    private void startDispatcher() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        int consumers = getConsumersAsInt();
+        log.info("Starting " + consumers + " consumers dispatching to " + getWorkersAsInt() + " workers");
+        // the workers ack each delivery on its own, and only measure latency and integrity
+        List<String> ignored = new ArrayList<String>();
+        if (getDecompressAsBoolean()) {
+            ignored.add("decompress bodies");
+        }
+        if (!autoAck() && getAckBatchSizeAsInt() > 1) {
+            ignored.add("ack batch size");
+        }
+        if (getSubResultEveryAsInt() > 0) {
+            ignored.add("sub-results");
+        }
+        if (!ignored.isEmpty()) {
+            log.warn(getTitle() + " ignores " + ignored + " with more than one consumer or worker thread");
+        }
+        dispatcher = new ConsumerDispatcher(getWorkersAsInt(), getRingBufferSizeAsInt(), getTimestamp(),
+                TimeUnit.MILLISECONDS.toNanos(getClockOffsetAsLong()), autoAck());
+        dispatcher.setIntegrity(getSequenceTracker());
+        for (int i = 0; i < consumers; i++) {
+            Channel consumerChannel = createChannel();
+            consumerChannel.basicQos(getChannelPrefetchCount());
+            dispatcher.consume(consumerChannel, getQueue());
+        }
+    }
+
+    private void stopDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.close();
+            dispatcher = null;
+        }
+    }
+
+    private static String toResponse(byte[] body, boolean prefixed) {
+        return prefixed && body.length >= SendTimestamps.PREFIX_LENGTH
+                ? new String(body, SendTimestamps.PREFIX_LENGTH, body.length - SendTimestamps.PREFIX_LENGTH)
+                : new String(body);
+    }
+
     @Override
     protected Channel getChannel() {
         return channel;
@@ -222,6 +565,174 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return getPropertyAsInt(PREFETCH_COUNT);
     }
 
+    /*
+     * The prefetch count of each consuming channel. The connection thread
+     * waits while the sampler's buffer is full, holding up the connection's
+     * other channels, so the unacked deliveries of all its consumers must fit
+     * into the buffer: an unlimited prefetch count becomes the buffer's share
+     * and a larger one is rejected. With automatic acknowledgement the broker
+     * ignores it.
+     */
+    private int getChannelPrefetchCount() throws IOException {
+        int consumers = isDispatching() ? getConsumersAsInt() : 1;
+        int capacity = getBufferCapacity();
+        int prefetch = getPrefetchCountAsInt();
+        if (prefetch < 1) {
+            return Math.max(1, capacity / consumers);
+        }
+        if ((long) prefetch * consumers > capacity) {
+            throw new IOException("Prefetch count " + prefetch + (consumers > 1 ? " times " + consumers + " consumers" : "")
+                    + " exceeds the buffer of " + capacity + " deliveries, raise the ring buffer size");
+        }
+        return prefetch;
+    }
+
+    /*
+     * The ring rounds its size up to a power of two; the dispatcher buffers the size as given.
+     */
+    private int getBufferCapacity() {
+        int size = getRingBufferSizeAsInt();
+        return isDispatching() ? size : RingBufferConsumer.capacityFor(size);
+    }
+
+    /**
+     * @return the number of deliveries buffered between the connection and the sampler thread
+     */
+    public String getRingBufferSize() {
+        return getPropertyAsString(RING_BUFFER_SIZE, DEFAULT_RING_BUFFER_SIZE_STRING);
+    }
+
+    public void setRingBufferSize(String size) {
+        setProperty(RING_BUFFER_SIZE, size);
+    }
+
+    protected int getRingBufferSizeAsInt() {
+        if (getPropertyAsInt(RING_BUFFER_SIZE) < 1) {
+            return DEFAULT_RING_BUFFER_SIZE;
+        }
+        return getPropertyAsInt(RING_BUFFER_SIZE);
+    }
+
+    /**
+     * @return how the sampler thread waits for deliveries: BLOCK, PARK or SPIN
+     */
+    public String getWaitStrategy() {
+        return getPropertyAsString(WAIT_STRATEGY, DEFAULT_WAIT_STRATEGY);
+    }
+
+    public void setWaitStrategy(String strategy) {
+        setProperty(WAIT_STRATEGY, strategy);
+    }
+
+    protected RingBufferConsumer.WaitStrategy getWaitStrategyValue() {
+        try {
+            return RingBufferConsumer.WaitStrategy.valueOf(getWaitStrategy().trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown wait strategy " + getWaitStrategy() + ", using " + DEFAULT_WAIT_STRATEGY);
+            return RingBufferConsumer.WaitStrategy.BLOCK;
+        }
+    }
+
+    /**
+     * @return the number of consumers the sampler starts on its connection
+     */
+    public String getConsumers() {
+        return getPropertyAsString(CONSUMERS, DEFAULT_CONSUMERS_STRING);
+    }
+
+    public void setConsumers(String consumers) {
+        setProperty(CONSUMERS, consumers);
+    }
+
+    protected int getConsumersAsInt() {
+        if (getPropertyAsInt(CONSUMERS) < 1) {
+            return DEFAULT_CONSUMERS;
+        }
+        return getPropertyAsInt(CONSUMERS);
+    }
+
+    /**
+     * @return the number of worker threads processing the deliveries of the consumers
+     */
+    public String getWorkers() {
+        return getPropertyAsString(WORKERS, DEFAULT_WORKERS_STRING);
+    }
+
+    public void setWorkers(String workers) {
+        setProperty(WORKERS, workers);
+    }
+
+    protected int getWorkersAsInt() {
+        if (getPropertyAsInt(WORKERS) < 1) {
+            return DEFAULT_WORKERS;
+        }
+        return getPropertyAsInt(WORKERS);
+    }
+
+    /**
+     * @return the number of deliveries acknowledged with one multiple ack, 1 to ack every delivery
+     */
+    public String getAckBatchSize() {
+        return getPropertyAsString(ACK_BATCH_SIZE, DEFAULT_ACK_BATCH_SIZE_STRING);
+    }
+
+    public void setAckBatchSize(String size) {
+        setProperty(ACK_BATCH_SIZE, size);
+    }
+
+    protected int getAckBatchSizeAsInt() {
+        int size = getPropertyAsInt(ACK_BATCH_SIZE);
+        if (size < 1) {
+            return DEFAULT_ACK_BATCH_SIZE;
+        }
+        // the broker stops delivering when the unacked deliveries reach the prefetch count
+        try {
+            return Math.min(size, getChannelPrefetchCount());
+        } catch (IOException e) {
+            return size; // initChannel rejects the prefetch count
+        }
+    }
+
+    /**
+     * @return the milliseconds a delivery may wait for its ack batch to fill
+     */
+    public String getAckBatchDelay() {
+        return getPropertyAsString(ACK_BATCH_DELAY, DEFAULT_ACK_BATCH_DELAY_STRING);
+    }
+
+    public void setAckBatchDelay(String delay) {
+        setProperty(ACK_BATCH_DELAY, delay);
+    }
+
+    protected int getAckBatchDelayAsInt() {
+        if (getPropertyAsInt(ACK_BATCH_DELAY) < 1) {
+            return DEFAULT_ACK_BATCH_DELAY;
+        }
+        return getPropertyAsInt(ACK_BATCH_DELAY);
+    }
+
+    /**
+     * @return whether deliveries are checked for gaps, duplicates and corruption using their integrity headers
+     */
+    public boolean getVerifyIntegrityAsBoolean() {
+        return getPropertyAsBoolean(VERIFY_INTEGRITY);
+    }
+
+    public void setVerifyIntegrity(Boolean verify) {
+        setProperty(VERIFY_INTEGRITY, verify);
+    }
+
+    /**
+     * @return whether compressed bodies are decompressed and verified, according to their content encoding
+     */
+    public boolean getDecompressAsBoolean() {
+        return getPropertyAsBoolean(DECOMPRESS);
+    }
+
+    public void setDecompress(Boolean decompress) {
+        setProperty(DECOMPRESS, decompress);
+    }
+
     /**
      * set whether the sampler should read the response or not
      *
@@ -251,46 +762,110 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
 
 
-    @Override
-    public boolean interrupt() {
-        testEnded();
-        return true;
+    /**
+     * @return where publishers stamped the send timestamp: none, header or body
+     */
+    public String getTimestamp() {
+        return getPropertyAsString(TIMESTAMP, DEFAULT_TIMESTAMP);
+    }
+
+    public void setTimestamp(String timestamp) {
+        setProperty(TIMESTAMP, timestamp);
     }
 
     /**
-     * {@inheritDoc}
+     * @return how many milliseconds this generator's clock runs ahead of the publishers' clock
      */
-    @Override
-    public void testEnded() {
+    public String getClockOffset() {
+        return getPropertyAsString(CLOCK_OFFSET, "0");
+    }
 
-        if(purgeQueue()){
-            log.info("Purging queue " + getQueue());
-            try {
-                channel.queuePurge(getQueue());
-            } catch (IOException e) {
-                log.error("Failed to purge queue " + getQueue(), e);
-            }
-        }
+    public void setClockOffset(String offset) {
+        setProperty(CLOCK_OFFSET, offset);
     }
 
-    @Override
-    public void testEnded(String arg0) {
+    protected long getClockOffsetAsLong() {
+        return getPropertyAsLong(CLOCK_OFFSET);
+    }
 
+    /*
+     * Report the latencies of this sample, and of all samples so far.
+     */
+    private void addLatencyStats(SampleResult result) {
+        totalLatency.add(sampleLatency);
+        HistogramLog.Recorder recorder = getRecorder("delivery");
+        if (recorder != null) {
+            recorder.add(sampleLatency);
+        }
+        addResponseHeader(result, "e2e-latency", sampleLatency.summary());
+        addResponseHeader(result, "e2e-latency-total", totalLatency.summary());
+        sampleLatency.reset();
     }
 
     @Override
-    public void testStarted() {
+    public void threadFinished() {
+        if (totalLatency != null) {
+            log.info(getTitle() + " end-to-end latency " + totalLatency.summary());
+        }
+        if (acks != null) {
+            flushAcks();
+            long[] counts = acks.drain(ackLag);
+            ackFramesTotal += counts[0];
+            acksTotal += counts[1];
+            log.info(getTitle() + " acknowledged " + acksTotal + " deliveries in " + ackFramesTotal + " ack frames");
+        }
+        super.threadFinished();
+    }
 
+    @Override
+    public boolean interrupt() {
+        flushAcks();
+        return true;
     }
 
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public void testStarted(String arg0) {
+    public void testEnded() {
+        purge();
+        SequenceTracker.closeAll();
+        super.testEnded();
+    }
 
+    /*
+     * Purge the queue once when the test ends, however many consumers of it
+     * there are, on a channel of its own since the threads' are closed by now.
+     */
+    private void purge() {
+        if (!purgeQueue() || !TopologyManager.claimTeardown("purge|" + getBrokerKey() + "|" + getQueue())) {
+            return;
+        }
+        log.info("Purging queue " + getQueue());
+        try {
+            Channel purgeChannel = createChannel();
+            try {
+                purgeChannel.queuePurge(getQueue());
+            } finally {
+                if (purgeChannel.isOpen()) {
+                    purgeChannel.close();
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to purge queue " + getQueue(), e);
+        } finally {
+            super.cleanup();
+        }
     }
 
     public void cleanup() {
 
+        stopDispatcher();
+        flushAcks();
         try {
+            if (consumer != null) {
+                consumer.close();
+            }
             if (consumerTag != null) {
                channel.basicCancel(consumerTag);
             }
@@ -314,7 +889,28 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
     protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
         boolean ret = super.initChannel();
-        channel.basicQos(getPrefetchCountAsInt());
+        channel.basicQos(getChannelPrefetchCount());
         return ret;
     }
+
+    /**
+     * Consume again on the recovered channel, as part of the recovery. The
+     * deliveries left unacknowledged on the lost channel are redelivered.
+     */
+    @Override
+    protected void afterRecovery(Channel channel) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        if (consumer != null) {
+            consumer.close();
+        }
+        consumer = null;
+        consumerTag = null;
+        stopDispatcher();
+        channel.basicQos(getChannelPrefetchCount());
+        if (isDispatching()) {
+            startDispatcher();
+        } else {
+            consumer = new RingBufferConsumer(channel, getRingBufferSizeAsInt(), getWaitStrategyValue(), autoAck());
+            consumerTag = channel.basicConsume(getQueue(), autoAck(), consumer);
+        }
+    }
 }
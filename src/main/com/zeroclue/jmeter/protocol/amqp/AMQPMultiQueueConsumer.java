@@ -0,0 +1,417 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumes from many queues at once, such as the shards "shard-{0..255}",
+ * over a few channels, see {@link QueueSetConsumer}.
+ *
+ * A sample waits for the given number of deliveries from any of the queues
+ * and reports how they were spread: the busiest and slowest queues, how many
+ * stayed idle and how far the busiest is ahead of the average. The response
+ * holds the deliveries, throughput and latency of every queue.
+ */
+public class AMQPMultiQueueConsumer extends AMQPSampler implements Interruptible {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final String DEFAULT_CHANNELS_STRING = Integer.toString(DEFAULT_CHANNELS);
+    public static final int DEFAULT_PREFETCH_COUNT = 0; // unlimited
+    public static final String DEFAULT_PREFETCH_COUNT_STRING = Integer.toString(DEFAULT_PREFETCH_COUNT);
+    public static final String DEFAULT_TIMESTAMP = SendTimestamps.MODE_NONE;
+
+    // the number of queues named in the busiest and slowest headers
+    private static final int TOP_QUEUES = 5;
+
+    //++ These are JMX names, and must not be changed
+    private final static String QUEUES = "AMQPMultiQueueConsumer.Queues";
+    private final static String CHANNELS = "AMQPMultiQueueConsumer.Channels";
+    private final static String PREFETCH_COUNT = "AMQPMultiQueueConsumer.PrefetchCount";
+    private final static String AUTO_ACK = "AMQPMultiQueueConsumer.AutoAck";
+    private final static String RECEIVE_TIMEOUT = "AMQPMultiQueueConsumer.ReceiveTimeout";
+    private final static String TIMESTAMP = "AMQPMultiQueueConsumer.Timestamp";
+    private final static String CLOCK_OFFSET = "AMQPMultiQueueConsumer.ClockOffset";
+
+    private transient Channel channel;
+    private transient QueueSetConsumer consumer;
+    private transient long[] counts;
+    private transient long[] latencyCounts;
+    private transient long[] latencySums;
+    private transient long[] latencyMaxes;
+    private transient String[] queueNames;
+    private transient long[] totals;
+    private transient LatencyHistogram sampleLatency;
+    private transient long drainedAt; // when the counts were last drained, or the consumer started
+
+    public AMQPMultiQueueConsumer() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode("500");
+
+        try {
+            initChannel();
+            if (consumer == null) {
+                startConsumer();
+            }
+        } catch (Exception ex) {
+            log.error("Failed to initialize channel", ex);
+            result.setResponseMessage(ex.toString());
+            stopConsumer();
+            return result;
+        }
+
+        QueueSetConsumer active = consumer; // kept for the stats should it fail below
+        int loop = getIterationsAsInt();
+        result.setSampleLabel(getTitle());
+        result.setSamplerData(getQueues());
+        result.sampleStart(); // Start timing
+        long from = active.getProcessed();
+        try {
+            if (!active.awaitProcessed(from + loop, getReceiveTimeoutAsInt())) {
+                result.setResponseMessage("timed out");
+            } else {
+                result.setResponseCodeOK();
+                result.setResponseMessage("OK");
+                result.setSuccessful(true);
+            }
+        } catch (ShutdownSignalException ex) {
+            log.warn("AMQP consumer failed to consume", ex);
+            result.setResponseCode("400");
+            result.setResponseMessage(ex.getMessage());
+            stopConsumer();
+        } catch (ConsumerCancelledException ex) {
+            log.warn("AMQP consumer failed to consume", ex);
+            result.setResponseCode("300");
+            result.setResponseMessage(ex.getMessage());
+            stopConsumer();
+        } catch (InterruptedException ex) {
+            log.info("interuppted while attempting to consume");
+            result.setResponseCode("200");
+            result.setResponseMessage(ex.getMessage());
+        } catch (IllegalStateException ex) {
+            log.warn("AMQP consumer failed to consume", ex);
+            result.setResponseCode("100");
+            result.setResponseMessage(ex.getMessage());
+            stopConsumer();
+        } finally {
+            result.sampleEnd(); // End timimg
+            addQueueStats(result, active);
+            addRecoveryStats(result);
+        }
+        return result;
+    }
+
+    /*
+     * Report how the deliveries were spread over the queues. The counts
+     * include those taken between samples, so the rates are over the time
+     * since the last report rather than the sample's.
+     */
+    private void addQueueStats(SampleResult result, QueueSetConsumer active) {
+        String[] queues = active.getQueues();
+        active.drain(counts, latencyCounts, latencySums, latencyMaxes, sampleLatency);
+        long now = System.nanoTime();
+        long elapsed = now - drainedAt;
+        drainedAt = now;
+
+        long processed = 0;
+        long busiest = 0;
+        int idle = 0;
+        StringBuilder table = new StringBuilder("queue\tdeliveries\tper-second\tavg-latency-us\tmax-latency-us\n");
+        for (int i = 0; i < queues.length; i++) {
+            processed += counts[i];
+            totals[i] += counts[i];
+            busiest = Math.max(busiest, counts[i]);
+            if (counts[i] == 0) {
+                idle++;
+            }
+            table.append(queues[i]).append('\t').append(counts[i])
+                    .append('\t').append(elapsed > 0 ? counts[i] * 1000000000L / elapsed : 0)
+                    .append('\t').append(latencyCounts[i] > 0 ? micros(latencySums[i] / latencyCounts[i]) : "-")
+                    .append('\t').append(latencyCounts[i] > 0 ? micros(latencyMaxes[i]) : "-").append('\n');
+        }
+
+        addResponseHeader(result, "deliveries", processed);
+        addResponseHeader(result, "throughput", elapsed > 0 ? processed * 1000000000L / elapsed : 0);
+        addResponseHeader(result, "queues-idle", idle + " of " + queues.length);
+        // 1 when the deliveries are spread evenly, the number of queues when one queue had them all
+        addResponseHeader(result, "queue-imbalance",
+                processed > 0 ? String.format("%.2f", (double) busiest * queues.length / processed) : "-");
+        addResponseHeader(result, "busiest-queues", describeTop(queues, counts, null));
+        if (!SendTimestamps.MODE_NONE.equals(getTimestamp())) {
+            long[] means = new long[queues.length];
+            for (int i = 0; i < queues.length; i++) {
+                means[i] = latencyCounts[i] > 0 ? latencySums[i] / latencyCounts[i] : 0;
+            }
+            addResponseHeader(result, "slowest-queues", describeTop(queues, means, latencyMaxes));
+            addResponseHeader(result, "e2e-latency", sampleLatency.summary());
+            HistogramLog.Recorder recorder = getRecorder("delivery");
+            if (recorder != null) {
+                recorder.add(sampleLatency);
+            }
+        }
+        sampleLatency.reset();
+        result.setResponseData(table.toString(), null);
+        result.setDataType(SampleResult.TEXT);
+    }
+
+    /*
+     * Name the queues with the highest values, with their maximum latency
+     * if given, in microseconds.
+     */
+    private static String describeTop(String[] queues, long[] values, long[] maxes) {
+        int[] top = new int[Math.min(TOP_QUEUES, queues.length)];
+        int size = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == 0 || (size == top.length && values[i] <= values[top[size - 1]])) {
+                continue;
+            }
+            int position = size < top.length ? size++ : size - 1;
+            while (position > 0 && values[top[position - 1]] < values[i]) {
+                top[position] = top[position - 1];
+                position--;
+            }
+            top[position] = i;
+        }
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append(queues[top[i]]).append('=');
+            if (maxes == null) {
+                description.append(values[top[i]]);
+            } else {
+                description.append(micros(values[top[i]])).append("us (max ").append(micros(maxes[top[i]])).append("us)");
+            }
+        }
+        return description.toString();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private void startConsumer() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        String[] queues = getQueueNames();
+        if (queues.length == 0) {
+            throw new IllegalArgumentException("No queues to consume from");
+        }
+        Channel[] channels = new Channel[Math.min(getChannelsAsInt(), queues.length)];
+        log.info("Consuming from " + queues.length + " queues over " + channels.length + " channels");
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = createChannel();
+            channels[i].basicQos(getPrefetchCountAsInt());
+        }
+        consumer = new QueueSetConsumer(queues, channels, getTimestamp(),
+                TimeUnit.MILLISECONDS.toNanos(getClockOffsetAsLong()), autoAck());
+        drainedAt = System.nanoTime();
+        if (totals == null || totals.length != queues.length) {
+            counts = new long[queues.length];
+            latencyCounts = new long[queues.length];
+            latencySums = new long[queues.length];
+            latencyMaxes = new long[queues.length];
+            totals = new long[queues.length];
+            queueNames = queues;
+            sampleLatency = new LatencyHistogram();
+        }
+        consumer.start();
+    }
+
+    private void stopConsumer() {
+        if (consumer != null) {
+            consumer.close();
+            consumer = null;
+        }
+    }
+
+    /*
+     * The queues named by the comma separated names and patterns, such as
+     * "orders, shard-{0..255}".
+     */
+    private String[] getQueueNames() {
+        List<String> names = new ArrayList<String>();
+        for (String entry : getQueues().split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            NamePattern pattern = new NamePattern(entry);
+            for (int i = 0; i < pattern.size(); i++) {
+                names.add(pattern.nameAt(i));
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * @return the queues to consume from, names and patterns such as shard-{0..255} separated by commas
+     */
+    public String getQueues() {
+        return getPropertyAsString(QUEUES);
+    }
+
+    public void setQueues(String queues) {
+        setProperty(QUEUES, queues);
+    }
+
+    /**
+     * @return the number of channels the queues are spread over
+     */
+    public String getChannels() {
+        return getPropertyAsString(CHANNELS, DEFAULT_CHANNELS_STRING);
+    }
+
+    public void setChannels(String channels) {
+        setProperty(CHANNELS, channels);
+    }
+
+    protected int getChannelsAsInt() {
+        if (getPropertyAsInt(CHANNELS) < 1) {
+            return DEFAULT_CHANNELS;
+        }
+        return getPropertyAsInt(CHANNELS);
+    }
+
+    /**
+     * {@inheritDoc} The consuming channels besides the sampler's own.
+     */
+    @Override
+    protected int getChannelsPerThread() {
+        return 1 + getChannelsAsInt();
+    }
+
+    /**
+     * @return the number of unacknowledged deliveries of each queue, 0 for no limit
+     */
+    public String getPrefetchCount() {
+        return getPropertyAsString(PREFETCH_COUNT, DEFAULT_PREFETCH_COUNT_STRING);
+    }
+
+    public void setPrefetchCount(String prefetchCount) {
+        setProperty(PREFETCH_COUNT, prefetchCount);
+    }
+
+    public int getPrefetchCountAsInt() {
+        return getPropertyAsInt(PREFETCH_COUNT);
+    }
+
+    public boolean autoAck() {
+        return getPropertyAsBoolean(AUTO_ACK);
+    }
+
+    public void setAutoAck(Boolean autoAck) {
+        setProperty(AUTO_ACK, autoAck.toString());
+    }
+
+    protected int getReceiveTimeoutAsInt() {
+        if (getPropertyAsInt(RECEIVE_TIMEOUT) < 1) {
+            return DEFAULT_TIMEOUT;
+        }
+        return getPropertyAsInt(RECEIVE_TIMEOUT);
+    }
+
+    public String getReceiveTimeout() {
+        return getPropertyAsString(RECEIVE_TIMEOUT, DEFAULT_TIMEOUT_STRING);
+    }
+
+    public void setReceiveTimeout(String s) {
+        setProperty(RECEIVE_TIMEOUT, s);
+    }
+
+    /**
+     * @return where publishers stamped the send timestamp: none, header or body
+     */
+    public String getTimestamp() {
+        return getPropertyAsString(TIMESTAMP, DEFAULT_TIMESTAMP);
+    }
+
+    public void setTimestamp(String timestamp) {
+        setProperty(TIMESTAMP, timestamp);
+    }
+
+    /**
+     * @return how many milliseconds this generator's clock runs ahead of the publishers' clock
+     */
+    public String getClockOffset() {
+        return getPropertyAsString(CLOCK_OFFSET, "0");
+    }
+
+    public void setClockOffset(String offset) {
+        setProperty(CLOCK_OFFSET, offset);
+    }
+
+    protected long getClockOffsetAsLong() {
+        return getPropertyAsLong(CLOCK_OFFSET);
+    }
+
+    @Override
+    protected Channel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Consume from the queues again, on channels of the recovered connection.
+     */
+    @Override
+    protected void afterRecovery(Channel channel) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        stopConsumer();
+        startConsumer();
+    }
+
+    @Override
+    public void threadFinished() {
+        if (totals != null) {
+            long processed = 0;
+            for (long total : totals) {
+                processed += total;
+            }
+            log.info(getTitle() + " consumed " + processed + " deliveries from " + totals.length
+                    + " queues, busiest: " + describeTop(queueNames, totals, null));
+        }
+        super.threadFinished();
+    }
+
+    @Override
+    public boolean interrupt() {
+        stopConsumer();
+        return true;
+    }
+
+    @Override
+    protected void cleanup() {
+        stopConsumer();
+        super.cleanup();
+    }
+}
@@ -4,13 +4,21 @@ import com.rabbitmq.client.AMQP;
 import java.io.IOException;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import com.rabbitmq.client.MessageProperties;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.MultiProperty;
+import org.apache.jmeter.testelement.property.PropertyIterator;
 import org.apache.jmeter.testelement.property.TestElementProperty;
+import org.apache.jmeter.threads.JMeterContext;
+import org.apache.jmeter.threads.JMeterContextService;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
@@ -46,7 +54,93 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     public static boolean DEFAULT_USE_TX = false;
     private final static String USE_TX = "AMQPConsumer.UseTx";
 
+    public static boolean DEFAULT_USE_CONFIRMS = false;
+    private final static String USE_CONFIRMS = "AMQPPublisher.UseConfirms";
+    public static final boolean DEFAULT_INTEGRITY = false;
+    private final static String INTEGRITY = "AMQPPublisher.Integrity";
+    public static final boolean DEFAULT_PAUSE_WHEN_BLOCKED = false;
+    private final static String PAUSE_WHEN_BLOCKED = "AMQPPublisher.PauseWhenBlocked";
+
+    public static final int DEFAULT_MAX_OUTSTANDING_CONFIRMS = 1000;
+    public static final String DEFAULT_MAX_OUTSTANDING_CONFIRMS_STRING = Integer.toString(DEFAULT_MAX_OUTSTANDING_CONFIRMS);
+    private final static String MAX_OUTSTANDING_CONFIRMS = "AMQPPublisher.MaxOutstandingConfirms";
+
+    public static final String DEFAULT_TIMESTAMP = SendTimestamps.MODE_NONE;
+    private final static String TIMESTAMP = "AMQPPublisher.Timestamp";
+
+    public static final String DEFAULT_ARRIVAL_PROFILE = ArrivalSchedule.PROFILE_NONE;
+    private final static String ARRIVAL_PROFILE = "AMQPPublisher.ArrivalProfile";
+    private final static String ARRIVAL_RATE = "AMQPPublisher.ArrivalRate";
+    private final static String TARGET_RATE = "AMQPPublisher.TargetRate";
+    private final static String RATE_PERIOD = "AMQPPublisher.RatePeriod";
+
+    public static final String PAYLOAD_MESSAGE = "message";
+    public static final String PAYLOAD_CORPUS = "corpus";
+    public static final String[] PAYLOADS = new String[]{PAYLOAD_MESSAGE, PayloadPool.DISTRIBUTION_FIXED,
+            PayloadPool.DISTRIBUTION_UNIFORM, PayloadPool.DISTRIBUTION_LOGNORMAL, PayloadPool.DISTRIBUTION_HISTOGRAM,
+            PAYLOAD_CORPUS};
+    public static final String DEFAULT_PAYLOAD = PAYLOAD_MESSAGE;
+    public static final int DEFAULT_PAYLOAD_POOL_SIZE = 100;
+    public static final String DEFAULT_PAYLOAD_POOL_SIZE_STRING = Integer.toString(DEFAULT_PAYLOAD_POOL_SIZE);
+    public static final int DEFAULT_PAYLOAD_POOL_MAX_MB = 256;
+    public static final String DEFAULT_PAYLOAD_POOL_MAX_MB_STRING = Integer.toString(DEFAULT_PAYLOAD_POOL_MAX_MB);
+    public static final String DEFAULT_PAYLOAD_SIGMA = "1.0";
+    public static final String DEFAULT_PAYLOAD_ORDER = PayloadPool.ORDER_ROUND_ROBIN;
+    private final static String PAYLOAD = "AMQPPublisher.Payload";
+    private final static String PAYLOAD_SIZE = "AMQPPublisher.PayloadSize";
+    private final static String PAYLOAD_MAX_SIZE = "AMQPPublisher.PayloadMaxSize";
+    private final static String PAYLOAD_SIGMA = "AMQPPublisher.PayloadSigma";
+    private final static String PAYLOAD_HISTOGRAM_FILE = "AMQPPublisher.PayloadHistogramFile";
+    private final static String PAYLOAD_POOL_SIZE = "AMQPPublisher.PayloadPoolSize";
+    private final static String PAYLOAD_POOL_MAX_MB = "AMQPPublisher.PayloadPoolMaxMB";
+    private final static String PAYLOAD_ORDER = "AMQPPublisher.PayloadOrder";
+    public static final String DEFAULT_CORPUS_ORDER = MessageCorpus.ORDER_SEQUENTIAL;
+    private final static String CORPUS_FILE = "AMQPPublisher.CorpusFile";
+    private final static String CORPUS_ORDER = "AMQPPublisher.CorpusOrder";
+    public static final String DEFAULT_CONTENT_ENCODING = PayloadCompression.ENCODING_NONE;
+    private final static String CONTENT_ENCODING = "AMQPPublisher.ContentEncoding";
+    public static final String DEFAULT_ROUTING_KEY_DISTRIBUTION = RoutingKeys.DISTRIBUTION_STATIC;
+    public static final String DEFAULT_ROUTING_KEY_EXPONENT = "1.0";
+    private final static String ROUTING_KEY_DISTRIBUTION = "AMQPPublisher.RoutingKeyDistribution";
+    private final static String ROUTING_KEY_SPACE = "AMQPPublisher.RoutingKeySpace";
+    private final static String ROUTING_KEY_EXPONENT = "AMQPPublisher.RoutingKeyExponent";
+
+    // sends starting later than this after their intended time count as late
+    private static final long LATE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long PAUSE_CHECK_MILLIS = 100;
+
     private transient Channel channel;
+    private transient ArrivalSchedule arrivalSchedule;
+    private transient boolean arrivalScheduleResolved;
+    private transient LatencyHistogram sendLateness;
+    private transient PayloadSource payloads;
+    private transient RoutingKeys.Cursor routingKeys;
+    private transient PublisherConfirms confirms;
+    private transient LatencyHistogram confirmLatency;
+    private transient LatencyHistogram publishLatency;
+    private transient Long producerId;
+    private transient long producerSequence;
+    private transient long outageUnsent;
+    private transient long outageUnconfirmed;
+    private transient volatile boolean stopping;
+
+    /*
+     * The message body, headers and properties are kept between samples and
+     * only rebuilt when a value they are made of changed, which can only
+     * happen when it contains JMeter functions or variables.
+     */
+    private transient String cachedMessage;
+    private transient byte[] cachedMessageBytes;
+    private transient int cachedMessageLength;
+    private transient byte[] cachedPrefixBuffer;
+    private transient Boolean headersDynamic;
+    private transient Map<String, Object> cachedHeaders;
+    private transient AMQP.BasicProperties cachedProperties;
+    private transient Map<String, Object> cachedPropertiesHeaders; // the map the properties copied their headers from
+    private transient boolean cachedPersistent;
+    private transient String cachedCorrelationId;
+    private transient String cachedReplyToQueue;
+    private transient String cachedMessageType;
 
     public AMQPPublisher() {
         super();
@@ -67,10 +161,29 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         } catch (Exception ex) {
             log.error("Failed to initialize channel : ", ex);
             result.setResponseMessage(ex.toString());
+            if (getRecovery() && channel != null) {
+                outageUnsent += getIterationsAsInt(); // still down
+            }
+            return result;
+        }
+
+        try {
+            initPayloads();
+        } catch (IOException ex) {
+            log.error("Failed to prepare the payloads : ", ex);
+            result.setResponseMessage(ex.toString());
             return result;
         }
 
-        String data = getMessage(); // Sampler data
+        try {
+            initRoutingKeys();
+        } catch (IllegalArgumentException ex) {
+            log.error("Failed to prepare the routing keys : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        String data = payloads == null ? getMessage() : "payloads: " + getPayload(); // Sampler data
 
         result.setSampleLabel(getTitle());
         /*
@@ -79,19 +192,174 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 
         // aggregate samples.
         int loop = getIterationsAsInt();
+
+        // in arrival rate mode wait for the first send, so the sample starts when it is due
+        ArrivalSchedule schedule = getArrivalSchedule();
+        long intended = 0;
+        if (schedule != null) {
+            intended = schedule.next();
+            try {
+                ArrivalSchedule.sleepUntil(intended);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                result.setResponseMessage(ex.toString());
+                return result;
+            }
+            if (sendLateness == null) {
+                sendLateness = new LatencyHistogram();
+            }
+        }
+        long lateSends = 0;
+
+        ConnectionBlocking blocking = getConnectionBlocking();
+        long blockedBefore = blocking.getBlockedNanos();
+        long blockedEpisodesBefore = blocking.getEpisodes();
+        boolean pauseWhenBlocked = getPauseWhenBlocked();
+        long pausedNanos = 0;
+        boolean pauseCutShort = false;
+        int published = 0;
+
         result.sampleStart(); // Start timing
         try {
-            AMQP.BasicProperties messageProperties = getProperties();
-            messageProperties.setHeaders(prepareHeaders());
-            byte[] messageBytes = getMessageBytes();
+            Map<String, Object> headers = getMessageHeaders();
+            AMQP.BasicProperties messageProperties = getMessageProperties(headers);
+            byte[] messageBytes = payloads == null ? getMessageBytes() : null;
+            long payloadBytes = 0;
+            boolean compressed = PayloadCompression.isCompressed(getContentEncoding());
+            boolean integrity = getIntegrity();
+            if (integrity && producerId == null) {
+                producerId = new Random().nextLong();
+                log.info(getTitle() + " " + Thread.currentThread().getName() + " publishes as producer " + producerId);
+            }
+
+            // the properties and body are serialized by basicPublish, so the
+            // timestamp can be updated in place for every message
+            String timestamp = getTimestamp();
+            boolean timestampHeader = SendTimestamps.MODE_HEADER.equals(timestamp);
+            boolean timestampBody = SendTimestamps.MODE_BODY.equals(timestamp);
+            byte[] payload = payloads != null ? null : timestampBody ? getPrefixBuffer(messageBytes) : messageBytes;
+
+            HistogramLog.Recorder publishRecorder = getRecorder("publish");
+            if (publishRecorder != null && publishLatency == null) {
+                publishLatency = new LatencyHistogram();
+            }
+
+            MessageSubResults subResults = getMessageSubResults();
 
+            long allocatedBefore = ThreadAllocation.allocatedBytes();
             for (int idx = 0; idx < loop; idx++) {
                 // try to force jms semantics.
                 // but this does not work since RabbitMQ does not sync to disk if consumers are connected as
                 // seen by iostat -cd 1. TPS value remains at 0.
 
-                channel.basicPublish(getExchange(), getMessageRoutingKey(), messageProperties, messageBytes);
+                if (schedule != null && idx > 0) {
+                    intended = schedule.next();
+                    ArrivalSchedule.sleepUntil(intended);
+                }
+                if (pauseWhenBlocked && blocking.isBlocked()) {
+                    // wait here rather than inside basicPublish, so the stall is not taken for a slow publish;
+                    // in slices, as a shared connection may stay blocked long after this test was stopped
+                    long pauseStart = System.nanoTime();
+                    while (!stopping && !blocking.awaitUnblocked(PAUSE_CHECK_MILLIS)) {
+                        // still blocked
+                    }
+                    pausedNanos += System.nanoTime() - pauseStart;
+                    if (stopping) {
+                        pauseCutShort = true;
+                        break;
+                    }
+                }
+                if (payloads != null) {
+                    // pooled bodies are shared between threads, so a body timestamp needs a copy
+                    payload = timestampBody ? SendTimestamps.prefixBuffer(payloads.next()) : payloads.next();
+                    payloadBytes += payload.length;
+                }
+                boolean keep = subResults != null && subResults.next();
+                long seqNo = confirms == null ? -1 : channel.getNextPublishSeqNo();
+                if (confirms != null) {
+                    confirms.beforePublish(seqNo, schedule == null ? -1 : intended);
+                }
+                long publishStart = schedule == null && publishRecorder == null && !keep ? 0 : System.nanoTime();
+                if (schedule != null) {
+                    // measure from the intended send time, so a stalled broker is not hidden
+                    long lateness = publishStart - intended;
+                    sendLateness.record(lateness);
+                    if (lateness > LATE_NANOS) {
+                        schedule.late();
+                        lateSends++;
+                    }
+                    publishStart = intended;
+                }
+                if (timestampHeader) {
+                    headers.put(SendTimestamps.HEADER, SendTimestamps.fromNanoTime(schedule == null ? System.nanoTime() : intended));
+                } else if (timestampBody) {
+                    SendTimestamps.writePrefix(payload, SendTimestamps.fromNanoTime(schedule == null ? System.nanoTime() : intended));
+                }
+                if (integrity) {
+                    MessageIntegrity.stamp(headers, producerId, producerSequence++, payload);
+                }
+                if (timestampHeader || integrity) {
+                    // the properties hold a copy of the headers, so each stamp needs properties of its own
+                    messageProperties = messageProperties.builder().headers(headers).build();
+                }
+                String routingKey = routingKeys == null ? getMessageRoutingKey() : routingKeys.next();
+                channel.basicPublish(getExchange(), routingKey, messageProperties, payload);
+                published++;
+                if (publishRecorder != null) {
+                    publishLatency.record(System.nanoTime() - publishStart);
+                }
+                if (keep) {
+                    subResults.add(publishStart, System.nanoTime() - publishStart, payload.length, seqNo);
+                }
+
+            }
+
+            if (compressed) {
+                // what was sent, and what the bodies amounted to before compression
+                if (payloads == null) {
+                    payloadBytes = (long) payload.length * loop;
+                    addResponseHeader(result, "payload-bytes", (long) cachedMessageLength * loop);
+                } else {
+                    addResponseHeader(result, "payload-bytes",
+                            ((PayloadCompression.Source) payloads).drainUncompressedBytes());
+                }
+                addResponseHeader(result, "encoded-bytes", payloadBytes);
+            } else if (payloads != null) {
+                addResponseHeader(result, "payload-bytes", payloadBytes);
+            }
+
+            if (pauseWhenBlocked) {
+                addResponseHeader(result, "paused-millis", TimeUnit.NANOSECONDS.toMillis(pausedNanos));
+                addResponseHeader(result, "pause-cut-short", pauseCutShort);
+            }
+
+            if (routingKeys != null) {
+                addResponseHeader(result, "routing-keys", routingKeys.drainSummary());
+            }
 
+            if (ThreadAllocation.isSupported() && loop > 0) {
+                addResponseHeader(result, "allocated-bytes-per-publish",
+                        (ThreadAllocation.allocatedBytes() - allocatedBefore) / loop);
+            }
+
+            if (schedule != null) {
+                addResponseHeader(result, "sends-late", lateSends);
+                addResponseHeader(result, "send-lateness", sendLateness.summary());
+                addResponseHeader(result, "send-backlog", schedule.getBacklog());
+                sendLateness.reset();
+            }
+
+            if (publishRecorder != null) {
+                publishRecorder.add(publishLatency);
+                publishLatency.reset();
+            }
+
+            if (pauseCutShort) {
+                // a commit or the confirms would wait for the blocked connection as well
+                result.setResponseCode("200");
+                result.setResponseMessage("Stopped after " + published + " of " + loop
+                        + " messages, while the broker blocked the connection");
+                return result;
             }
 
             // commit the sample.
@@ -99,31 +367,140 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
                 channel.txCommit();
             }
 
+            if (confirms != null) {
+                addConfirmStats(result);
+            }
+
             /*
              * Set up the sample result details
              */
             result.setSamplerData(data);
-            result.setResponseData(new String(messageBytes), null);
+            result.setResponseData(data, null);
             result.setDataType(SampleResult.TEXT);
 
             result.setResponseCodeOK();
             result.setResponseMessage("OK");
             result.setSuccessful(true);
+        } catch (InterruptedException ex) {
+            // while waiting for the next send to be due, a confirm, or the broker to unblock the connection
+            Thread.currentThread().interrupt();
+            result.setResponseMessage(ex.toString());
         } catch (Exception ex) {
             log.debug(ex.getMessage(), ex);
             result.setResponseCode("000");
             result.setResponseMessage(ex.toString());
+            if (getRecovery() && !channel.isOpen()) {
+                outageUnsent += loop - published;
+            }
         }
         finally {
             result.sampleEnd(); // End timimg
+            addBlockedStats(result, blocking, blockedBefore, blockedEpisodesBefore);
+            if (addRecoveryStats(result)) {
+                addResponseHeader(result, "outage-unsent", outageUnsent);
+                addResponseHeader(result, "outage-unconfirmed", outageUnconfirmed);
+                outageUnsent = 0;
+                outageUnconfirmed = 0;
+            }
+            if (getMessageSubResults() != null) {
+                getMessageSubResults().attachTo(result, getTitle());
+            }
         }
 
         return result;
     }
 
 
-    private byte[] getMessageBytes() {
-        return getMessage().getBytes();
+    protected byte[] getMessageBytes() {
+        String message = getMessage();
+        if (message != cachedMessage && !message.equals(cachedMessage)) {
+            cachedMessage = message;
+            cachedMessageBytes = message.getBytes();
+            cachedMessageLength = cachedMessageBytes.length;
+            if (PayloadCompression.isCompressed(getContentEncoding())) {
+                cachedMessageBytes = PayloadCompression.compress(cachedMessageBytes, getContentEncoding());
+            }
+            cachedPrefixBuffer = null;
+        }
+        return cachedMessageBytes;
+    }
+
+    /**
+     * @return the body of the next message, from the pool or corpus if one is used, else the message content
+     */
+    protected byte[] nextMessageBytes() {
+        return payloads == null ? getMessageBytes() : payloads.next();
+    }
+
+    /**
+     * @return the routing key of the next message, picked from the key space if one is used
+     */
+    protected String nextRoutingKey() {
+        return routingKeys == null ? getMessageRoutingKey() : routingKeys.next();
+    }
+
+    /**
+     * @return the routing keys picked since the last call, or null if the static routing key is used
+     */
+    protected String drainRoutingKeySummary() {
+        return routingKeys == null ? null : routingKeys.drainSummary();
+    }
+
+    private byte[] getPrefixBuffer(byte[] messageBytes) {
+        if (cachedPrefixBuffer == null) {
+            cachedPrefixBuffer = SendTimestamps.prefixBuffer(messageBytes);
+        }
+        return cachedPrefixBuffer;
+    }
+
+    protected Map<String, Object> getMessageHeaders() {
+        if (headersDynamic == null) {
+            headersDynamic = containsFunction(getProperty(HEADERS));
+        }
+        if (cachedHeaders == null || headersDynamic) {
+            cachedHeaders = prepareHeaders();
+        }
+        return cachedHeaders;
+    }
+
+    protected AMQP.BasicProperties getMessageProperties(Map<String, Object> headers) {
+        boolean persistent = getPersistent();
+        String correlationId = getCorrelationId();
+        String replyToQueue = getReplyToQueue();
+        String messageType = getMessageType();
+        if (cachedProperties == null
+                || persistent != cachedPersistent
+                || !StringUtils.equals(correlationId, cachedCorrelationId)
+                || !StringUtils.equals(replyToQueue, cachedReplyToQueue)
+                || !StringUtils.equals(messageType, cachedMessageType)) {
+            cachedProperties = getProperties();
+            cachedPropertiesHeaders = null;
+            cachedPersistent = persistent;
+            cachedCorrelationId = correlationId;
+            cachedReplyToQueue = replyToQueue;
+            cachedMessageType = messageType;
+        }
+        if (cachedPropertiesHeaders != headers) {
+            // a copy with the new map rather than the deprecated setter, which copies the map in turn
+            cachedProperties = cachedProperties.builder().headers(headers).build();
+            cachedPropertiesHeaders = headers;
+        }
+        return cachedProperties;
+    }
+
+    private static boolean containsFunction(JMeterProperty property) {
+        if (property instanceof FunctionProperty) {
+            return true;
+        }
+        if (property instanceof MultiProperty) {
+            PropertyIterator children = ((MultiProperty) property).iterator();
+            while (children.hasNext()) {
+                if (containsFunction(children.next())) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -205,8 +582,349 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
        setProperty(USE_TX, tx);
     }
 
+    public Boolean getUseConfirms() {
+        return getPropertyAsBoolean(USE_CONFIRMS, DEFAULT_USE_CONFIRMS);
+    }
+
+    public void setUseConfirms(Boolean confirms) {
+       setProperty(USE_CONFIRMS, confirms);
+    }
+
+    /**
+     * @return whether each message carries a producer id, sequence number and body checksum
+     */
+    public Boolean getIntegrity() {
+        return getPropertyAsBoolean(INTEGRITY, DEFAULT_INTEGRITY);
+    }
+
+    public void setIntegrity(Boolean integrity) {
+        setProperty(INTEGRITY, integrity);
+    }
+
+    /**
+     * @return whether publishing waits while the broker blocks the connection, instead of stalling in the client
+     */
+    public Boolean getPauseWhenBlocked() {
+        return getPropertyAsBoolean(PAUSE_WHEN_BLOCKED, DEFAULT_PAUSE_WHEN_BLOCKED);
+    }
+
+    public void setPauseWhenBlocked(Boolean pause) {
+        setProperty(PAUSE_WHEN_BLOCKED, pause);
+    }
+
+    /**
+     * @return the maximum number of published messages awaiting a confirm
+     */
+    public String getMaxOutstandingConfirms() {
+        return getPropertyAsString(MAX_OUTSTANDING_CONFIRMS, DEFAULT_MAX_OUTSTANDING_CONFIRMS_STRING);
+    }
+
+    public void setMaxOutstandingConfirms(String content) {
+        setProperty(MAX_OUTSTANDING_CONFIRMS, content);
+    }
+
+    protected int getMaxOutstandingConfirmsAsInt() {
+        if (getPropertyAsInt(MAX_OUTSTANDING_CONFIRMS) < 1) {
+            return DEFAULT_MAX_OUTSTANDING_CONFIRMS;
+        }
+        return getPropertyAsInt(MAX_OUTSTANDING_CONFIRMS);
+    }
+
+    /**
+     * @return where the send timestamp is stamped on each message: none, header or body
+     */
+    public String getTimestamp() {
+        return getPropertyAsString(TIMESTAMP, DEFAULT_TIMESTAMP);
+    }
+
+    public void setTimestamp(String timestamp) {
+        setProperty(TIMESTAMP, timestamp);
+    }
+
+    /**
+     * @return how bodies are compressed before publishing: none, gzip or deflate
+     */
+    public String getContentEncoding() {
+        return getPropertyAsString(CONTENT_ENCODING, DEFAULT_CONTENT_ENCODING);
+    }
+
+    public void setContentEncoding(String encoding) {
+        setProperty(CONTENT_ENCODING, encoding);
+    }
+
+    /**
+     * @return the arrival rate profile: none, constant, step or ramp
+     */
+    public String getArrivalProfile() {
+        return getPropertyAsString(ARRIVAL_PROFILE, DEFAULT_ARRIVAL_PROFILE);
+    }
+
+    public void setArrivalProfile(String profile) {
+        setProperty(ARRIVAL_PROFILE, profile);
+    }
+
+    /**
+     * @return the (initial) number of messages per second all threads of the sampler publish together
+     */
+    public String getArrivalRate() {
+        return getPropertyAsString(ARRIVAL_RATE);
+    }
+
+    public void setArrivalRate(String rate) {
+        setProperty(ARRIVAL_RATE, rate);
+    }
+
+    /**
+     * @return the rate the step and ramp profiles end at
+     */
+    public String getTargetRate() {
+        return getPropertyAsString(TARGET_RATE);
+    }
+
+    public void setTargetRate(String rate) {
+        setProperty(TARGET_RATE, rate);
+    }
+
+    /**
+     * @return the step length or ramp duration in seconds
+     */
+    public String getRatePeriod() {
+        return getPropertyAsString(RATE_PERIOD);
+    }
+
+    public void setRatePeriod(String period) {
+        setProperty(RATE_PERIOD, period);
+    }
+
+    /**
+     * @return where message bodies come from: the message content, or a pool generated from a size distribution
+     */
+    public String getPayload() {
+        return getPropertyAsString(PAYLOAD, DEFAULT_PAYLOAD);
+    }
+
+    public void setPayload(String payload) {
+        setProperty(PAYLOAD, payload);
+    }
+
+    /**
+     * @return the fixed size, the minimum of the uniform or the median of the lognormal distribution, in bytes
+     */
+    public String getPayloadSize() {
+        return getPropertyAsString(PAYLOAD_SIZE);
+    }
+
+    public void setPayloadSize(String size) {
+        setProperty(PAYLOAD_SIZE, size);
+    }
+
+    /**
+     * @return the maximum payload size in bytes
+     */
+    public String getPayloadMaxSize() {
+        return getPropertyAsString(PAYLOAD_MAX_SIZE);
+    }
+
+    public void setPayloadMaxSize(String size) {
+        setProperty(PAYLOAD_MAX_SIZE, size);
+    }
+
+    /**
+     * @return the shape of the lognormal size distribution
+     */
+    public String getPayloadSigma() {
+        return getPropertyAsString(PAYLOAD_SIGMA, DEFAULT_PAYLOAD_SIGMA);
+    }
+
+    public void setPayloadSigma(String sigma) {
+        setProperty(PAYLOAD_SIGMA, sigma);
+    }
+
+    /**
+     * @return the file of "size,weight" lines of the histogram size distribution
+     */
+    public String getPayloadHistogramFile() {
+        return getPropertyAsString(PAYLOAD_HISTOGRAM_FILE);
+    }
+
+    public void setPayloadHistogramFile(String file) {
+        setProperty(PAYLOAD_HISTOGRAM_FILE, file);
+    }
+
+    /**
+     * @return the number of bodies generated
+     */
+    public String getPayloadPoolSize() {
+        return getPropertyAsString(PAYLOAD_POOL_SIZE, DEFAULT_PAYLOAD_POOL_SIZE_STRING);
+    }
+
+    public void setPayloadPoolSize(String size) {
+        setProperty(PAYLOAD_POOL_SIZE, size);
+    }
+
+    protected int getPayloadPoolSizeAsInt() {
+        if (getPropertyAsInt(PAYLOAD_POOL_SIZE) < 1) {
+            return DEFAULT_PAYLOAD_POOL_SIZE;
+        }
+        return getPropertyAsInt(PAYLOAD_POOL_SIZE);
+    }
+
+    /**
+     * @return the most memory the generated bodies may take, in megabytes
+     */
+    public String getPayloadPoolMaxMB() {
+        return getPropertyAsString(PAYLOAD_POOL_MAX_MB, DEFAULT_PAYLOAD_POOL_MAX_MB_STRING);
+    }
+
+    public void setPayloadPoolMaxMB(String megabytes) {
+        setProperty(PAYLOAD_POOL_MAX_MB, megabytes);
+    }
+
+    protected int getPayloadPoolMaxMBAsInt() {
+        if (getPropertyAsInt(PAYLOAD_POOL_MAX_MB) < 1) {
+            return DEFAULT_PAYLOAD_POOL_MAX_MB;
+        }
+        return getPropertyAsInt(PAYLOAD_POOL_MAX_MB);
+    }
+
+    /**
+     * @return the order the pooled bodies are sent in: round-robin or random
+     */
+    public String getPayloadOrder() {
+        return getPropertyAsString(PAYLOAD_ORDER, DEFAULT_PAYLOAD_ORDER);
+    }
+
+    public void setPayloadOrder(String order) {
+        setProperty(PAYLOAD_ORDER, order);
+    }
+
+    /**
+     * @return the file of length prefixed message bodies sent with the corpus payload
+     */
+    public String getCorpusFile() {
+        return getPropertyAsString(CORPUS_FILE);
+    }
+
+    public void setCorpusFile(String file) {
+        setProperty(CORPUS_FILE, file);
+    }
+
+    /**
+     * @return the order the corpus is read in: sequential, strided or random
+     */
+    public String getCorpusOrder() {
+        return getPropertyAsString(CORPUS_ORDER, DEFAULT_CORPUS_ORDER);
+    }
+
+    public void setCorpusOrder(String order) {
+        setProperty(CORPUS_ORDER, order);
+    }
+
+    /*
+     * Take the bodies from the mapped corpus file, or from the publisher's
+     * pool, generated by the first thread to get here, unless the message
+     * content is sent.
+     */
+    protected void initPayloads() throws IOException {
+        if (payloads != null || PAYLOAD_MESSAGE.equals(getPayload())) {
+            return;
+        }
+        JMeterContext context = JMeterContextService.getContext();
+        boolean corpus = PAYLOAD_CORPUS.equals(getPayload());
+        PayloadSource bodies;
+        if (corpus) {
+            int threads = context.getThreadGroup() == null ? 1 : context.getThreadGroup().getNumThreads();
+            bodies = MessageCorpus.forFile(getCorpusFile())
+                    .cursor(getCorpusOrder(), context.getThreadNum(), threads);
+        } else {
+            PayloadPool pool = PayloadPool.forSampler(getTitle(), getPayload(),
+                    getPropertyAsInt(PAYLOAD_SIZE), getPropertyAsInt(PAYLOAD_MAX_SIZE),
+                    getPropertyAsDouble(PAYLOAD_SIGMA), getPayloadHistogramFile(),
+                    getPayloadPoolSizeAsInt(), getPayloadPoolMaxMBAsInt() * 1024L * 1024L);
+            bodies = new PayloadPool.Cursor(pool, getPayloadOrder(), context.getThreadNum());
+        }
+        if (PayloadCompression.isCompressed(getContentEncoding())) {
+            // corpus bodies are read into new arrays for every send, so caching them is pointless
+            bodies = new PayloadCompression.Source(bodies, getContentEncoding(), !corpus);
+        }
+        payloads = bodies;
+    }
+
+    /**
+     * @return how the routing key of each message is picked: static, uniform, round-robin, zipf or weighted
+     */
+    public String getRoutingKeyDistribution() {
+        return getPropertyAsString(ROUTING_KEY_DISTRIBUTION, DEFAULT_ROUTING_KEY_DISTRIBUTION);
+    }
+
+    public void setRoutingKeyDistribution(String distribution) {
+        setProperty(ROUTING_KEY_DISTRIBUTION, distribution);
+    }
+
+    /**
+     * @return the routing keys to pick from, a pattern such as key.{0..999}, or
+     * "key=weight" entries separated by commas for the weighted distribution
+     */
+    public String getRoutingKeySpace() {
+        return getPropertyAsString(ROUTING_KEY_SPACE);
+    }
+
+    public void setRoutingKeySpace(String space) {
+        setProperty(ROUTING_KEY_SPACE, space);
+    }
+
+    /**
+     * @return the exponent of the zipf distribution, the higher the more skewed towards the first keys
+     */
+    public String getRoutingKeyExponent() {
+        return getPropertyAsString(ROUTING_KEY_EXPONENT, DEFAULT_ROUTING_KEY_EXPONENT);
+    }
+
+    public void setRoutingKeyExponent(String exponent) {
+        setProperty(ROUTING_KEY_EXPONENT, exponent);
+    }
+
+    /*
+     * Pick the routing keys from the publisher's key space, built by the
+     * first thread to get here, unless the static routing key is used.
+     */
+    protected void initRoutingKeys() {
+        if (routingKeys != null || RoutingKeys.DISTRIBUTION_STATIC.equals(getRoutingKeyDistribution())) {
+            return;
+        }
+        routingKeys = RoutingKeys.forSampler(getTitle(), getRoutingKeyDistribution(), getRoutingKeySpace(),
+                getPropertyAsDouble(ROUTING_KEY_EXPONENT)).cursor(JMeterContextService.getContext().getThreadNum());
+    }
+
+    private ArrivalSchedule getArrivalSchedule() {
+        if (!arrivalScheduleResolved) {
+            arrivalSchedule = ArrivalSchedule.forSampler(getTitle(), getArrivalProfile(),
+                    getPropertyAsDouble(ARRIVAL_RATE), getPropertyAsDouble(TARGET_RATE),
+                    getPropertyAsDouble(RATE_PERIOD));
+            arrivalScheduleResolved = true;
+        }
+        return arrivalSchedule;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        ArrivalSchedule.closeAll();
+        PayloadPool.closeAll();
+        MessageCorpus.closeAll();
+        RoutingKeys.closeAll();
+        super.testEnded();
+    }
+
     @Override
     public boolean interrupt() {
+        stopping = true;
+        ConnectionBlocking blocking = getConnectionBlocking();
+        if (blocking != null) {
+            blocking.wakeWaiters();
+        }
         cleanup();
         return true;
     }
@@ -228,7 +946,7 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         int deliveryMode = getPersistent() ? 2 : 1;
 
         AMQP.BasicProperties publishProperties =
-                new AMQP.BasicProperties(parentProps.getContentType(), parentProps.getContentEncoding(),
+                new AMQP.BasicProperties(parentProps.getContentType(), getPublishedContentEncoding(parentProps),
                 parentProps.getHeaders(), deliveryMode, parentProps.getPriority(),
                 getCorrelationId(), getReplyToQueue(), parentProps.getExpiration(),
                 parentProps.getMessageId(), parentProps.getTimestamp(), getMessageType(),
@@ -237,14 +955,55 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         return publishProperties;
     }
 
+    private String getPublishedContentEncoding(AMQP.BasicProperties parentProps) {
+        String encoding = getContentEncoding();
+        return PayloadCompression.isCompressed(encoding) ? encoding : parentProps.getContentEncoding();
+    }
+
+    /**
+     * Count the messages of the lost channel that were never confirmed, so
+     * whether the broker got them is unknown.
+     */
+    @Override
+    protected void afterRecovery(Channel channel) {
+        if (confirms != null) {
+            outageUnconfirmed += confirms.getOutstanding();
+        }
+        log.info(getTitle() + " left " + outageUnsent + " messages unsent and " + outageUnconfirmed
+                + " unconfirmed during the outage");
+    }
+
     protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
         boolean ret = super.initChannel();
         if (getUseTx()) {
             channel.txSelect();
+        } else if (getUseConfirms() && (confirms == null || !confirms.isFor(channel))) {
+            // a channel cannot be transactional and in confirm mode at the same time
+            confirms = new PublisherConfirms(channel, getMaxOutstandingConfirmsAsInt(), getTimeoutAsInt());
+            channel.addConfirmListener(confirms);
+            channel.confirmSelect();
+            confirmLatency = new LatencyHistogram();
         }
         return ret;
     }
 
+    /*
+     * Report the confirms received while this sample ran. Confirms arrive
+     * asynchronously, so they may belong to messages of earlier samples.
+     */
+    private void addConfirmStats(SampleResult result) {
+        confirmLatency.reset();
+        long[] counts = confirms.drain(confirmLatency);
+        addResponseHeader(result, "confirms-acked", counts[0]);
+        addResponseHeader(result, "confirms-nacked", counts[1]);
+        addResponseHeader(result, "confirms-outstanding", confirms.getOutstanding());
+        addResponseHeader(result, "confirm-latency", confirmLatency.summary());
+        HistogramLog.Recorder recorder = getRecorder("confirm");
+        if (recorder != null) {
+            recorder.add(confirmLatency);
+        }
+    }
+
     private Map<String, Object> prepareHeaders() {
         Map<String, Object> result = new HashMap<String, Object>();
         Map<String, String> source = getHeaders().getArgumentsAsMap();
@@ -82,6 +82,9 @@ public class AMQPPublisherSSL extends AMQPSamplerSSL implements Interruptible {
 
         // aggregate samples.
         int loop = getIterationsAsInt();
+        ConnectionBlocking blocking = getConnectionBlocking();
+        long blockedBefore = blocking.getBlockedNanos();
+        long blockedEpisodesBefore = blocking.getEpisodes();
         result.sampleStart(); // Start timing
         try {
             AMQP.BasicProperties messageProperties = getProperties();
@@ -123,6 +126,7 @@ public class AMQPPublisherSSL extends AMQPSamplerSSL implements Interruptible {
         }
         finally {
             result.sampleEnd(); // End timimg
+            AMQPSampler.addBlockedStats(result, blocking, blockedBefore, blockedEpisodesBefore);
         }
 
         return result;
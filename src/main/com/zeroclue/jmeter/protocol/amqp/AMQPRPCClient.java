@@ -0,0 +1,359 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Request/reply sampler: publishes each message with a reply-to address and
+ * a correlation id and waits for the matching reply, measuring the round
+ * trip from publishing the request to receiving its reply.
+ *
+ * Replies are consumed by one {@link ReplyDispatcher} per channel, either
+ * through RabbitMQ's direct reply-to or from a reply queue of its own. The
+ * reply queue configured on the publisher names these queues if set, each
+ * suffixed per dispatcher, otherwise server named exclusive queues are
+ * declared.
+ *
+ * With more than one outstanding request allowed, the sampler pipelines: it
+ * keeps up to that many requests of a sample in flight, and expires overdue
+ * ones with a {@link TimerWheel}, so a few threads can keep a service busy
+ * with many concurrent requests.
+ *
+ * Of the publisher's settings, the request bodies come from the payload pool
+ * or corpus and the routing keys from the key distribution as configured.
+ * Options that only make sense for one-way publishing are not used, and are
+ * hidden in the GUI: requests are neither transactional nor confirmed, carry
+ * no send timestamp or integrity headers, are sent as fast as replies allow
+ * rather than at an arrival rate, and do not pause while the connection is
+ * blocked. Round trips are recorded in the "rtt" histogram log rather than
+ * "publish".
+ */
+public class AMQPRPCClient extends AMQPPublisher {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final boolean DEFAULT_DIRECT_REPLY_TO = true;
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 1;
+    public static final String DEFAULT_MAX_OUTSTANDING_STRING = Integer.toString(DEFAULT_MAX_OUTSTANDING);
+
+    //++ These are JMX names, and must not be changed
+    private final static String DIRECT_REPLY_TO = "AMQPRPCClient.DirectReplyTo";
+    private final static String REPLY_TIMEOUT = "AMQPRPCClient.ReplyTimeout";
+    private final static String MAX_OUTSTANDING = "AMQPRPCClient.MaxOutstanding";
+
+    private transient ReplyDispatcher replies;
+    private transient LatencyHistogram roundTrips;
+    private transient TimerWheel timeouts;
+    private transient TimerWheel.Expiry expireRequest;
+    private transient long timeoutsBefore;
+    private transient long orphanedBefore;
+    private transient long blockedBefore;
+    private transient long blockedEpisodesBefore;
+
+    public AMQPRPCClient() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode("500");
+
+        try {
+            initChannel();
+        } catch (Exception ex) {
+            log.error("Failed to initialize channel : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        try {
+            initPayloads();
+        } catch (IOException ex) {
+            log.error("Failed to prepare the payloads : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        try {
+            initRoutingKeys();
+        } catch (IllegalArgumentException ex) {
+            log.error("Failed to prepare the routing keys : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        String data = PAYLOAD_MESSAGE.equals(getPayload()) ? getMessage() : "payloads: " + getPayload(); // Sampler data
+        result.setSampleLabel(getTitle());
+        if (roundTrips == null) {
+            roundTrips = new LatencyHistogram();
+        }
+        HistogramLog.Recorder recorder = getRecorder("rtt");
+
+        timeoutsBefore = replies.getTimeouts();
+        orphanedBefore = replies.getOrphaned();
+        blockedBefore = getConnectionBlocking().getBlockedNanos();
+        blockedEpisodesBefore = getConnectionBlocking().getEpisodes();
+        if (getMaxOutstandingAsInt() > 1) {
+            return samplePipelined(result, data, recorder);
+        }
+
+        Channel channel = getChannel();
+        int loop = getIterationsAsInt();
+        result.sampleStart(); // Start timing
+        try {
+            Map<String, Object> headers = getMessageHeaders();
+            AMQP.BasicProperties messageProperties = getMessageProperties(headers);
+            byte[] reply = null;
+
+            for (int idx = 0; idx < loop; idx++) {
+                long sequence = replies.register();
+                boolean replied = false;
+                boolean timedOut = false;
+                try {
+                    AMQP.BasicProperties requestProperties = messageProperties.builder()
+                            .replyTo(replies.getReplyTo())
+                            .correlationId(replies.correlationId(sequence))
+                            .build();
+                    channel.basicPublish(getExchange(), nextRoutingKey(), requestProperties, nextMessageBytes());
+
+                    replied = replies.await(sequence, getReplyTimeoutAsInt());
+                    timedOut = !replied;
+                    if (replied) {
+                        roundTrips.record(replies.getRoundTrip(sequence));
+                        reply = replies.getBody(sequence);
+                    }
+                } finally {
+                    replies.complete(sequence, timedOut);
+                }
+                if (!replied) {
+                    result.setResponseCode("408");
+                    result.setResponseMessage("timed out waiting for the reply to " + replies.correlationId(sequence));
+                    return result;
+                }
+            }
+
+            result.setSamplerData(data);
+            result.setResponseData(reply == null ? new byte[0] : reply);
+            result.setDataType(SampleResult.TEXT);
+
+            result.setResponseCodeOK();
+            result.setResponseMessage("OK");
+            result.setSuccessful(true);
+        } catch (ShutdownSignalException ex) {
+            log.warn("AMQP RPC client lost its channel", ex);
+            result.setResponseCode("400");
+            result.setResponseMessage(ex.getMessage());
+        } catch (Exception ex) {
+            log.debug(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            result.sampleEnd(); // End timimg
+            addReplyStats(result, recorder);
+        }
+
+        return result;
+    }
+
+    /*
+     * Send the requests of a sample keeping up to the maximum number in
+     * flight, until every one was answered or timed out.
+     */
+    private SampleResult samplePipelined(SampleResult result, String data, HistogramLog.Recorder recorder) {
+        Channel channel = getChannel();
+        int loop = getIterationsAsInt();
+        int maxOutstanding = getMaxOutstandingAsInt();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(getReplyTimeoutAsInt());
+        if (timeouts == null) {
+            timeouts = new TimerWheel(timeoutNanos);
+            expireRequest = new TimerWheel.Expiry() {
+                @Override
+                public void expired(long sequence) {
+                    replies.complete(sequence, true); // ignored if answered already
+                }
+            };
+        }
+        result.sampleStart(); // Start timing
+        long from = replies.getFinished();
+        long target = from + loop;
+        try {
+            Map<String, Object> headers = getMessageHeaders();
+            AMQP.BasicProperties messageProperties = getMessageProperties(headers);
+
+            int sent = 0;
+            long finished = from;
+            while (finished < target) {
+                timeouts.expire(System.nanoTime(), expireRequest);
+                while (sent < loop && replies.getOutstanding() < maxOutstanding) {
+                    long sequence = replies.register();
+                    if (sequence < 0) {
+                        break; // the slot is held by a request still in flight
+                    }
+                    AMQP.BasicProperties requestProperties = messageProperties.builder()
+                            .replyTo(replies.getReplyTo())
+                            .correlationId(replies.correlationId(sequence))
+                            .build();
+                    channel.basicPublish(getExchange(), nextRoutingKey(), requestProperties, nextMessageBytes());
+                    timeouts.schedule(sequence, System.nanoTime() + timeoutNanos);
+                    sent++;
+                }
+                finished = replies.awaitFinished(finished, timeouts.getTickNanos());
+            }
+
+            long timedOut = replies.getTimeouts() - timeoutsBefore;
+            result.setSamplerData(data);
+            byte[] reply = replies.getLastBody();
+            result.setResponseData(reply == null ? new byte[0] : reply);
+            result.setDataType(SampleResult.TEXT);
+            if (timedOut > 0) {
+                result.setResponseCode("408");
+                result.setResponseMessage(timedOut + " of " + loop + " requests timed out");
+            } else {
+                result.setResponseCodeOK();
+                result.setResponseMessage("OK");
+                result.setSuccessful(true);
+            }
+        } catch (ShutdownSignalException ex) {
+            log.warn("AMQP RPC client lost its channel", ex);
+            result.setResponseCode("400");
+            result.setResponseMessage(ex.getMessage());
+        } catch (Exception ex) {
+            log.debug(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            result.sampleEnd(); // End timimg
+            replies.drainRoundTrips(roundTrips);
+            addReplyStats(result, recorder);
+        }
+        return result;
+    }
+
+    @Override
+    protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        boolean ret = super.initChannel();
+        Channel channel = getChannel();
+        if (replies == null || !replies.isFor(channel)) {
+            int maxOutstanding = getMaxOutstandingAsInt();
+            replies = new ReplyDispatcher(channel, maxOutstanding, maxOutstanding > 1);
+            if (timeouts != null) {
+                timeouts.clear(); // the requests of the old channel are gone
+            }
+            String replyTo = replies.start(getReplyQueue());
+            log.info("Consuming replies from " + replyTo);
+        }
+        return ret;
+    }
+
+    private String getReplyQueue() {
+        if (getDirectReplyTo()) {
+            return ReplyDispatcher.DIRECT_REPLY_TO;
+        }
+        return StringUtils.trimToEmpty(getReplyToQueue());
+    }
+
+    /*
+     * Report the round trips of this sample, the replies that did not
+     * match a request and how long the broker blocked the connection.
+     */
+    private void addReplyStats(SampleResult result, HistogramLog.Recorder recorder) {
+        addResponseHeader(result, "rpc-timeouts", replies.getTimeouts() - timeoutsBefore);
+        addResponseHeader(result, "rpc-orphaned-replies", replies.getOrphaned() - orphanedBefore);
+        addResponseHeader(result, "rtt", roundTrips.summary());
+        String routingKeySummary = drainRoutingKeySummary();
+        if (routingKeySummary != null) {
+            addResponseHeader(result, "routing-keys", routingKeySummary);
+        }
+        addBlockedStats(result, getConnectionBlocking(), blockedBefore, blockedEpisodesBefore);
+        addRecoveryStats(result);
+        if (recorder != null) {
+            recorder.add(roundTrips);
+        }
+        roundTrips.reset();
+    }
+
+    /**
+     * @return false, requests are not sent in transactions
+     */
+    @Override
+    public Boolean getUseTx() {
+        return false;
+    }
+
+    /**
+     * @return false, a request is known to have arrived once it is answered
+     */
+    @Override
+    public Boolean getUseConfirms() {
+        return false;
+    }
+
+    /**
+     * @return whether replies are received through RabbitMQ's direct reply-to
+     */
+    public Boolean getDirectReplyTo() {
+        return getPropertyAsBoolean(DIRECT_REPLY_TO, DEFAULT_DIRECT_REPLY_TO);
+    }
+
+    public void setDirectReplyTo(Boolean direct) {
+        setProperty(DIRECT_REPLY_TO, direct);
+    }
+
+    /**
+     * @return the number of requests a thread keeps in flight, 1 to wait for each reply before the next request
+     */
+    public String getMaxOutstanding() {
+        return getPropertyAsString(MAX_OUTSTANDING, DEFAULT_MAX_OUTSTANDING_STRING);
+    }
+
+    public void setMaxOutstanding(String max) {
+        setProperty(MAX_OUTSTANDING, max);
+    }
+
+    protected int getMaxOutstandingAsInt() {
+        if (getPropertyAsInt(MAX_OUTSTANDING) < 1) {
+            return DEFAULT_MAX_OUTSTANDING;
+        }
+        return getPropertyAsInt(MAX_OUTSTANDING);
+    }
+
+    /**
+     * @return the milliseconds to wait for a reply
+     */
+    public String getReplyTimeout() {
+        return getPropertyAsString(REPLY_TIMEOUT, DEFAULT_TIMEOUT_STRING);
+    }
+
+    public void setReplyTimeout(String timeout) {
+        setProperty(REPLY_TIMEOUT, timeout);
+    }
+
+    protected int getReplyTimeoutAsInt() {
+        if (getPropertyAsInt(REPLY_TIMEOUT) < 1) {
+            return DEFAULT_TIMEOUT;
+        }
+        return getPropertyAsInt(REPLY_TIMEOUT);
+    }
+}
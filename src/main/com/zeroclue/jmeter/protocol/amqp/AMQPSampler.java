@@ -3,17 +3,21 @@ package com.zeroclue.jmeter.protocol.amqp;
 import java.io.IOException;
 import java.util.*;
 import java.security.*;
+import java.util.concurrent.TimeUnit;
 
 import com.rabbitmq.client.*;
 import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jmeter.testelement.property.FunctionProperty;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import org.apache.commons.lang3.StringUtils;
 
-public abstract class AMQPSampler extends AbstractSampler implements ThreadListener {
+public abstract class AMQPSampler extends AbstractSampler implements ThreadListener, TestStateListener {
 
     public static final boolean DEFAULT_EXCHANGE_DURABLE = true;
     public static final boolean DEFAULT_EXCHANGE_REDECLARE = false;
@@ -28,6 +32,23 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     public static final int DEFAULT_ITERATIONS = 1;
     public static final String DEFAULT_ITERATIONS_STRING = Integer.toString(DEFAULT_ITERATIONS);
 
+    public static final int DEFAULT_CHANNELS_PER_CONNECTION = 1; // a private connection per thread
+    public static final String DEFAULT_CHANNELS_PER_CONNECTION_STRING = Integer.toString(DEFAULT_CHANNELS_PER_CONNECTION);
+
+    public static final int DEFAULT_HISTOGRAM_INTERVAL = 10;
+    public static final String DEFAULT_HISTOGRAM_INTERVAL_STRING = Integer.toString(DEFAULT_HISTOGRAM_INTERVAL);
+
+    public static final int DEFAULT_SUB_RESULT_EVERY = 0; // no sub-results
+    public static final String DEFAULT_SUB_RESULT_EVERY_STRING = Integer.toString(DEFAULT_SUB_RESULT_EVERY);
+
+    public static final boolean DEFAULT_RECOVERY = false;
+    public static final int DEFAULT_RECOVERY_DELAY = 100;
+    public static final String DEFAULT_RECOVERY_DELAY_STRING = Integer.toString(DEFAULT_RECOVERY_DELAY);
+    public static final int DEFAULT_RECOVERY_MAX_DELAY = 5000;
+    public static final String DEFAULT_RECOVERY_MAX_DELAY_STRING = Integer.toString(DEFAULT_RECOVERY_MAX_DELAY);
+    public static final int DEFAULT_RECOVERY_TIMEOUT = 60000;
+    public static final String DEFAULT_RECOVERY_TIMEOUT_STRING = Integer.toString(DEFAULT_RECOVERY_TIMEOUT);
+
     private static final Logger log = LoggingManager.getLoggerForClass();
 
 
@@ -52,10 +73,28 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
     private static final String QUEUE_REDECLARE = "AMQPSampler.Redeclare";
     private static final String QUEUE_EXCLUSIVE = "AMQPSampler.QueueExclusive";
     private static final String QUEUE_AUTO_DELETE = "AMQPSampler.QueueAutoDelete";
+    private static final String CHANNELS_PER_CONNECTION = "AMQPSampler.ChannelsPerConnection";
+    private static final String HISTOGRAM_LOG = "AMQPSampler.HistogramLog";
+    private static final String HISTOGRAM_INTERVAL = "AMQPSampler.HistogramInterval";
+    private static final String SUB_RESULT_EVERY = "AMQPSampler.SubResultEvery";
+    private static final String RECOVERY = "AMQPSampler.Recovery";
+    private static final String RECOVERY_DELAY = "AMQPSampler.RecoveryDelay";
+    private static final String RECOVERY_MAX_DELAY = "AMQPSampler.RecoveryMaxDelay";
+    private static final String RECOVERY_TIMEOUT = "AMQPSampler.RecoveryTimeout";
     private static final int DEFAULT_HEARTBEAT = 1;
 
     private transient ConnectionFactory factory;
     private transient Connection connection;
+    private transient boolean pooledConnection;
+    private transient int leasedChannels;
+    private transient ConnectionBlocking blocking;
+    private transient Map<String, HistogramLog.Recorder> recorders;
+    private transient MessageSubResults subResults;
+    private transient volatile long channelLostAt;
+    private transient long recoveryNanos; // of the last recovery, until reported
+    private transient int recoveryAttempts;
+    private transient long recoveries;
+    private transient long recoveryNanosTotal;
 
     protected AMQPSampler(){
         factory = new ConnectionFactory();
@@ -64,52 +103,240 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 
     protected boolean initChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
         Channel channel = getChannel();
+        boolean lost = false;
 
         if(channel != null && !channel.isOpen()){
             log.warn("channel " + channel.getChannelNumber()
                     + " closed unexpectedly: ", channel.getCloseReason());
             channel = null; // so we re-open it below
+            lost = true;
         }
 
         if(channel == null) {
-            channel = createChannel();
-            setChannel(channel);
+            if (lost && getRecovery()) {
+                channel = recover();
+            } else {
+                channel = createChannel();
+                setChannel(channel);
+                channelLostAt = 0;
+
+                declareTopology(channel, false, 0);
+            }
+            watchChannel(channel);
+
+        log.info("bound to:"
+                +"\n\t queue: " + getQueue()
+                +"\n\t exchange: " + getExchange()
+                +"\n\t exchange(D)? " + getExchangeDurable()
+                +"\n\t routing key: " + getRoutingKey()
+                +"\n\t arguments: " + getQueueArguments()
+                );
 
-            //TODO: Break out queue binding
-            boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty());
+        }
+        return true;
+    }
 
-            if(queueConfigured) {
-                if (getQueueRedeclare()) {
-                    deleteQueue();
-                }
+    /*
+     * Reopen the channel of this thread after it or its connection was lost,
+     * retrying with exponential backoff until the recovery timeout, redeclare
+     * the topology, which may have gone with a failed node, and let the
+     * sampler resume what it was doing on the new channel.
+     */
+    private Channel recover() throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        long lostAt = channelLostAt != 0 ? channelLostAt : System.nanoTime();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getRecoveryTimeoutAsInt());
+        long delay = getRecoveryDelayAsInt();
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            Exception failure;
+            try {
+                Channel channel = createChannel();
+                setChannel(channel);
+                declareTopology(channel, false, lostAt);
+                afterRecovery(channel);
+
+                recoveryNanos = System.nanoTime() - lostAt;
+                recoveryAttempts = attempts;
+                recoveries++;
+                recoveryNanosTotal += recoveryNanos;
+                channelLostAt = 0;
+                log.info(getTitle() + " recovered in " + TimeUnit.NANOSECONDS.toMillis(recoveryNanos) + " ms after "
+                        + attempts + " attempts");
+                return channel;
+            } catch (IOException e) {
+                failure = e;
+            } catch (ShutdownSignalException e) {
+                failure = e;
+            }
+            closeChannel(); // half recovered, so the next sample recovers again
+            if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline) {
+                throw new IOException(getTitle() + " failed to recover after " + attempts + " attempts", failure);
+            }
+            log.info(getTitle() + " recovery attempt " + attempts + " failed, retrying in " + delay + " ms: " + failure);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(getTitle() + " interrupted while recovering", e);
+            }
+            delay = Math.min(delay * 2, getRecoveryMaxDelayAsInt());
+        }
+    }
 
-                AMQP.Queue.DeclareOk declareQueueResp = channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+    private void closeChannel() {
+        Channel channel = getChannel();
+        try {
+            if (channel != null && channel.isOpen()) {
+                channel.close();
             }
+        } catch (Exception e) {
+            log.debug("Failed to close channel", e);
+        }
+    }
+
+    /**
+     * Called when the channel of this thread was recovered, before the
+     * recovery counts as done, so that e.g. a consumer can consume again.
+     *
+     * @param channel the new channel, with the topology redeclared
+     */
+    protected void afterRecovery(Channel channel) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+    }
 
-            if(!StringUtils.isBlank(getExchange())) { //Use a named exchange
-                if (getExchangeRedeclare()) {
-                    deleteExchange();
+    /*
+     * Note when the channel goes away, which is when the outage starts,
+     * rather than when the next sample finds out.
+     */
+    private void watchChannel(Channel channel) {
+        channel.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                if (!cause.isInitiatedByApplication() && channelLostAt == 0) {
+                    channelLostAt = System.nanoTime();
                 }
+            }
+        });
+    }
+
+    /**
+     * Report the recovery that took place since the last report, if any.
+     *
+     * @return whether there was one
+     */
+    protected boolean addRecoveryStats(SampleResult result) {
+        if (recoveryNanos == 0) {
+            return false;
+        }
+        addResponseHeader(result, "recovery-millis", TimeUnit.NANOSECONDS.toMillis(recoveryNanos));
+        addResponseHeader(result, "recovery-attempts", recoveryAttempts);
+        HistogramLog.Recorder recorder = getRecorder("recovery");
+        if (recorder != null) {
+            LatencyHistogram recovery = new LatencyHistogram();
+            recovery.record(recoveryNanos);
+            recorder.add(recovery);
+        }
+        recoveryNanos = 0;
+        return true;
+    }
 
-                AMQP.Exchange.DeclareOk declareExchangeResp = channel.exchangeDeclare(getExchange(), getExchangeType(), getExchangeDurable());
-                if (queueConfigured) {
-                    channel.queueBind(getQueue(), getExchange(), getRoutingKey());
+    /*
+     * Declare the queue, exchange and binding of the sampler, each once per
+     * test through the TopologyManager. Exclusive queues belong to the
+     * connection declaring them and auto-delete queues go away with their
+     * last consumer, so these and their bindings are declared on every
+     * channel instead, and skipped when setting up the test. When recovering
+     * from a channel lost at lostAt, everything not declared since is
+     * declared again, but nothing deleted.
+     */
+    private void declareTopology(Channel channel, boolean setUp, long lostAt)
+            throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        boolean recovering = lostAt != 0;
+        boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty());
+        boolean queueShared = !queueExclusive() && !queueAutoDelete();
+        String broker = getBrokerKey();
+
+        if(queueConfigured && (queueShared || !setUp)) {
+            String key = queueShared ? TopologyManager.queueKey(broker, getQueue(), queueDurable(),
+                    queueExclusive(), queueAutoDelete(), getQueueArguments()) : null;
+            if (key != null && recovering) {
+                TopologyManager.forget(key, lostAt);
+            }
+            if (key == null || TopologyManager.begin(key)) {
+                boolean declared = false;
+                try {
+                    if (getQueueRedeclare() && !recovering) {
+                        deleteQueue();
+                    }
+                    channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+                    declared = true;
+                } finally {
+                    if (key != null) {
+                        TopologyManager.end(key, declared);
+                    }
                 }
             }
+        }
 
-        log.info("bound to:"
-                +"\n\t queue: " + getQueue()
-                +"\n\t exchange: " + getExchange()
-                +"\n\t exchange(D)? " + getExchangeDurable()
-                +"\n\t routing key: " + getRoutingKey()
-                +"\n\t arguments: " + getQueueArguments()
-                );
+        if(!StringUtils.isBlank(getExchange())) { //Use a named exchange
+            String key = TopologyManager.exchangeKey(broker, getExchange(), getExchangeType(), getExchangeDurable());
+            if (recovering) {
+                TopologyManager.forget(key, lostAt);
+            }
+            if (TopologyManager.begin(key)) {
+                boolean declared = false;
+                try {
+                    if (getExchangeRedeclare() && !recovering) {
+                        deleteExchange();
+                    }
+                    channel.exchangeDeclare(getExchange(), getExchangeType(), getExchangeDurable());
+                    declared = true;
+                } finally {
+                    TopologyManager.end(key, declared);
+                }
+            }
+            if (queueConfigured && (queueShared || !setUp)) {
+                key = queueShared ? TopologyManager.bindingKey(broker, getQueue(), getExchange(), getRoutingKey()) : null;
+                if (key != null && recovering) {
+                    TopologyManager.forget(key, lostAt);
+                }
+                if (key == null || TopologyManager.begin(key)) {
+                    boolean declared = false;
+                    try {
+                        channel.queueBind(getQueue(), getExchange(), getRoutingKey());
+                        declared = true;
+                    } finally {
+                        if (key != null) {
+                            TopologyManager.end(key, declared);
+                        }
+                    }
+                }
+            }
+        }
+    }
 
+    /*
+     * Whether the topology can be declared before the threads start: names
+     * made of functions or variables can only be resolved by the threads.
+     */
+    private boolean isTopologyStatic() {
+        String[] names = new String[]{QUEUE, EXCHANGE, EXCHANGE_TYPE, ROUTING_KEY, HOST, PORT, VIRUTAL_HOST};
+        for (String name : names) {
+            if (getProperty(name) instanceof FunctionProperty) {
+                return false;
+            }
         }
         return true;
     }
 
-    private Map<String, Object> getQueueArguments() {
+    /**
+     * @return the key identifying the broker and virtual host the topology is declared on
+     */
+    protected String getBrokerKey() {
+        return getHost() + "|" + getPortAsInt() + "|" + getVirtualHost();
+    }
+
+    protected Map<String, Object> getQueueArguments() {
         Map<String, Object> arguments = new HashMap<String, Object>();
 
         if(getMessageTTL() != null && !getMessageTTL().isEmpty())
@@ -130,6 +357,33 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
         return properties;
     }
 
+    /**
+     * Append a metric to the response headers of a sample, one "name: value"
+     * pair per line, where it shows up next to the response in listeners.
+     */
+    protected static void addResponseHeader(SampleResult result, String name, Object value) {
+        String headers = result.getResponseHeaders();
+        result.setResponseHeaders(headers + name + ": " + value + "\n");
+    }
+
+    /**
+     * @return the tracker of the broker blocking this thread's connection, or null before it is opened
+     */
+    protected ConnectionBlocking getConnectionBlocking() {
+        return blocking;
+    }
+
+    /**
+     * Report how long the broker blocked the connection during a sample,
+     * given what the tracker said before it.
+     */
+    protected static void addBlockedStats(SampleResult result, ConnectionBlocking tracker, long blockedNanosBefore,
+                                          long episodesBefore) {
+        addResponseHeader(result, "blocked-millis",
+                TimeUnit.NANOSECONDS.toMillis(tracker.getBlockedNanos() - blockedNanosBefore));
+        addResponseHeader(result, "blocked-episodes", tracker.getEpisodes() - episodesBefore);
+    }
+
     /**
      * @return a string for the sampleResult Title
      */
@@ -379,19 +633,216 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
        setProperty(QUEUE_REDECLARE, content);
     }
 
+    /**
+     * @return the number of channels the threads of a pooled connection keep open on it together
+     */
+    public String getChannelsPerConnection() {
+        return getPropertyAsString(CHANNELS_PER_CONNECTION, DEFAULT_CHANNELS_PER_CONNECTION_STRING);
+    }
+
+    public void setChannelsPerConnection(String content) {
+        setProperty(CHANNELS_PER_CONNECTION, content);
+    }
+
+    protected int getChannelsPerConnectionAsInt() {
+        if (getPropertyAsInt(CHANNELS_PER_CONNECTION) < 1) {
+            return DEFAULT_CHANNELS_PER_CONNECTION;
+        }
+        return getPropertyAsInt(CHANNELS_PER_CONNECTION);
+    }
+
+    /**
+     * @return the number of channels a thread of this sampler keeps open on its connection
+     */
+    protected int getChannelsPerThread() {
+        return 1;
+    }
+
+    /**
+     * @return the file interval latency histograms are written to, empty to disable them
+     */
+    public String getHistogramLog() {
+        return getPropertyAsString(HISTOGRAM_LOG);
+    }
+
+    public void setHistogramLog(String path) {
+        setProperty(HISTOGRAM_LOG, path);
+    }
+
+    /**
+     * @return the number of seconds between interval histograms, 0 to only write totals at test end
+     */
+    public String getHistogramInterval() {
+        return getPropertyAsString(HISTOGRAM_INTERVAL, DEFAULT_HISTOGRAM_INTERVAL_STRING);
+    }
+
+    public void setHistogramInterval(String seconds) {
+        setProperty(HISTOGRAM_INTERVAL, seconds);
+    }
+
+    protected int getHistogramIntervalAsInt() {
+        return getPropertyAsInt(HISTOGRAM_INTERVAL, DEFAULT_HISTOGRAM_INTERVAL);
+    }
+
+    /**
+     * @return attach one message in this many as a sub-result to its sample, 1 for all, 0 for none
+     */
+    public String getSubResultEvery() {
+        return getPropertyAsString(SUB_RESULT_EVERY, DEFAULT_SUB_RESULT_EVERY_STRING);
+    }
+
+    public void setSubResultEvery(String every) {
+        setProperty(SUB_RESULT_EVERY, every);
+    }
+
+    protected int getSubResultEveryAsInt() {
+        return getPropertyAsInt(SUB_RESULT_EVERY, DEFAULT_SUB_RESULT_EVERY);
+    }
+
+    /**
+     * @return whether a lost channel or connection is recovered, retrying with backoff and redeclaring the topology
+     */
+    public boolean getRecovery() {
+        return getPropertyAsBoolean(RECOVERY, DEFAULT_RECOVERY);
+    }
+
+    public void setRecovery(Boolean recovery) {
+        setProperty(RECOVERY, recovery);
+    }
+
+    /**
+     * @return the milliseconds to wait after the first failed recovery attempt, doubled after each
+     */
+    public String getRecoveryDelay() {
+        return getPropertyAsString(RECOVERY_DELAY, DEFAULT_RECOVERY_DELAY_STRING);
+    }
+
+    public void setRecoveryDelay(String delay) {
+        setProperty(RECOVERY_DELAY, delay);
+    }
+
+    protected int getRecoveryDelayAsInt() {
+        if (getPropertyAsInt(RECOVERY_DELAY) < 1) {
+            return DEFAULT_RECOVERY_DELAY;
+        }
+        return getPropertyAsInt(RECOVERY_DELAY);
+    }
+
+    /**
+     * @return the most milliseconds to wait between recovery attempts
+     */
+    public String getRecoveryMaxDelay() {
+        return getPropertyAsString(RECOVERY_MAX_DELAY, DEFAULT_RECOVERY_MAX_DELAY_STRING);
+    }
+
+    public void setRecoveryMaxDelay(String delay) {
+        setProperty(RECOVERY_MAX_DELAY, delay);
+    }
+
+    protected int getRecoveryMaxDelayAsInt() {
+        if (getPropertyAsInt(RECOVERY_MAX_DELAY) < 1) {
+            return DEFAULT_RECOVERY_MAX_DELAY;
+        }
+        return getPropertyAsInt(RECOVERY_MAX_DELAY);
+    }
+
+    /**
+     * @return the milliseconds a sample keeps trying to recover before it fails
+     */
+    public String getRecoveryTimeout() {
+        return getPropertyAsString(RECOVERY_TIMEOUT, DEFAULT_RECOVERY_TIMEOUT_STRING);
+    }
+
+    public void setRecoveryTimeout(String timeout) {
+        setProperty(RECOVERY_TIMEOUT, timeout);
+    }
+
+    protected int getRecoveryTimeoutAsInt() {
+        if (getPropertyAsInt(RECOVERY_TIMEOUT) < 1) {
+            return DEFAULT_RECOVERY_TIMEOUT;
+        }
+        return getPropertyAsInt(RECOVERY_TIMEOUT);
+    }
+
+    /**
+     * @return this thread's per-message sub-results, or null if they are disabled
+     */
+    protected MessageSubResults getMessageSubResults() {
+        if (subResults == null && getSubResultEveryAsInt() > 0) {
+            subResults = new MessageSubResults(getSubResultEveryAsInt());
+        }
+        return subResults;
+    }
+
+    /**
+     * Return this thread's recorder for a latency series of this sampler,
+     * e.g. "publish" or "delivery".
+     *
+     * @param metric the name of the series within this sampler
+     * @return the recorder, or null if no histogram log is configured
+     */
+    protected HistogramLog.Recorder getRecorder(String metric) {
+        String path = getHistogramLog();
+        if (StringUtils.isBlank(path)) {
+            return null;
+        }
+        if (recorders == null) {
+            recorders = new HashMap<String, HistogramLog.Recorder>();
+        }
+        HistogramLog.Recorder recorder = recorders.get(metric);
+        if (recorder == null) {
+            try {
+                recorder = HistogramLog.forFile(path.trim(), getHistogramIntervalAsInt()).register(getTitle() + "." + metric);
+                recorders.put(metric, recorder);
+            } catch (IOException e) {
+                log.error("Failed to open histogram log " + path, e);
+                setHistogramLog(""); // don't retry on every sample
+                return null;
+            }
+        }
+        return recorder;
+    }
+
+    /**
+     * @return the key under which interchangeable connections are pooled
+     */
+    protected String getConnectionKey() {
+        return getHost() + "|" + getPortAsInt() + "|" + getVirtualHost() + "|" + getUsername() + "|" + getPassword()
+                + "|" + connectionSSL() + "|" + getTimeoutAsInt();
+    }
+
     protected void cleanup() {
         try {
             //getChannel().close();   // closing the connection will close the channel if it's still open
-            if(connection != null && connection.isOpen())
+            if (pooledConnection) {
+                // the connection is shared, so only our own channel goes away with it
+                Channel channel = getChannel();
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                }
+                releaseConnection();
+            } else if(connection != null && connection.isOpen())
                 connection.close();
         } catch (IOException e) {
             log.error("Failed to close connection", e);
         }
     }
 
+    private void releaseConnection() {
+        if (connection != null) {
+            AMQPConnectionPool.release(connection, leasedChannels);
+            connection = null;
+        }
+        pooledConnection = false;
+    }
+
     @Override
     public void threadFinished() {
         log.info("AMQPSampler.threadFinished called");
+        if (recoveries > 0) {
+            log.info(getTitle() + " recovered " + recoveries + " times, in "
+                    + TimeUnit.NANOSECONDS.toMillis(recoveryNanosTotal) + " ms in total");
+        }
         cleanup();
     }
 
@@ -400,6 +851,52 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
 
     }
 
+    /**
+     * Declare the topology of the sampler once for the whole test, on a
+     * connection of its own. If that fails, the threads declare it.
+     */
+    @Override
+    public void testStarted() {
+        TopologyManager.testStarted();
+        if (!isTopologyStatic()) {
+            return;
+        }
+        try {
+            Channel channel = createChannel();
+            try {
+                declareTopology(channel, true, 0);
+            } finally {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            }
+        } catch (Exception ex) {
+            log.warn("Failed to declare the topology of " + getName() + " before the test, threads will declare it", ex);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        TopologyManager.testEnded();
+        HistogramLog.closeAll();
+        ConnectionBlocking.closeAll();
+    }
+
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
     protected Channel createChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException {
         log.info("Creating channel " + getVirtualHost()+":"+getPortAsInt());
 
@@ -429,7 +926,19 @@ public abstract class AMQPSampler extends AbstractSampler implements ThreadListe
                 addresses[i] = new Address(hosts[i], getPortAsInt());
             }
             log.info("Using hosts: " + Arrays.toString(hosts) + " addresses: " + Arrays.toString(addresses));
-            connection = factory.newConnection(addresses);
+            if (pooledConnection) {
+                releaseConnection(); // give back the lease on the connection that went away
+            }
+            int channelsPerConnection = getChannelsPerConnectionAsInt();
+            if (channelsPerConnection > 1) {
+                leasedChannels = getChannelsPerThread();
+                connection = AMQPConnectionPool.acquire(getConnectionKey(), channelsPerConnection, leasedChannels,
+                        factory, addresses);
+                pooledConnection = true;
+            } else {
+                connection = factory.newConnection(addresses);
+            }
+            blocking = ConnectionBlocking.watch(connection, connection.getAddress().getHostAddress() + ":" + connection.getPort());
          }
 
          Channel channel = connection.createChannel();
@@ -4,14 +4,12 @@ import com.rabbitmq.client.*;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.jmeter.samplers.AbstractSampler;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.*;
 import java.security.cert.CertificateException;
@@ -19,7 +17,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
-public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadListener {
+public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadListener, TestStateListener {
 
     public static final boolean DEFAULT_EXCHANGE_DURABLE = true;
     public static final boolean DEFAULT_EXCHANGE_REDECLARE = false;
@@ -36,6 +34,9 @@ public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadLi
     public static final int DEFAULT_ITERATIONS = 1;
     public static final String DEFAULT_ITERATIONS_STRING = Integer.toString(DEFAULT_ITERATIONS);
 
+    public static final int DEFAULT_CHANNELS_PER_CONNECTION = 1; // a private connection per thread
+    public static final String DEFAULT_CHANNELS_PER_CONNECTION_STRING = Integer.toString(DEFAULT_CHANNELS_PER_CONNECTION);
+
     private static final Logger log = LoggingManager.getLoggerForClass();
 
 
@@ -69,10 +70,15 @@ public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadLi
     private static final String QUEUE_DECLARE_PASSIVE = "AMQPSamplerSSL.DeclarePassive";
     private static final String QUEUE_EXCLUSIVE = "AMQPSamplerSSL.QueueExclusive";
     private static final String QUEUE_AUTO_DELETE = "AMQPSamplerSSL.QueueAutoDelete";
+    private static final String CHANNELS_PER_CONNECTION = "AMQPSamplerSSL.ChannelsPerConnection";
     private static final int DEFAULT_HEARTBEAT = 1;
+    private static final String SSL_PROTOCOL = "SSLv3";
 
     private transient ConnectionFactory factory;
     private transient Connection connection;
+    private transient boolean pooledConnection;
+    private transient int leasedChannels;
+    private transient ConnectionBlocking blocking;
 
     protected AMQPSamplerSSL() {
         factory = new ConnectionFactory();
@@ -463,16 +469,65 @@ public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadLi
         return getPropertyAsBoolean(QUEUE_DECLARE_PASSIVE);
     }
 
+    /**
+     * @return the number of channels the threads of a pooled connection keep open on it together
+     */
+    public String getChannelsPerConnection() {
+        return getPropertyAsString(CHANNELS_PER_CONNECTION, DEFAULT_CHANNELS_PER_CONNECTION_STRING);
+    }
+
+    public void setChannelsPerConnection(String content) {
+        setProperty(CHANNELS_PER_CONNECTION, content);
+    }
+
+    protected int getChannelsPerConnectionAsInt() {
+        if (getPropertyAsInt(CHANNELS_PER_CONNECTION) < 1) {
+            return DEFAULT_CHANNELS_PER_CONNECTION;
+        }
+        return getPropertyAsInt(CHANNELS_PER_CONNECTION);
+    }
+
+    /**
+     * @return the number of channels a thread of this sampler keeps open on its connection
+     */
+    protected int getChannelsPerThread() {
+        return 1;
+    }
+
+    /**
+     * @return the key under which interchangeable connections are pooled
+     */
+    protected String getConnectionKey() {
+        return getHost() + "|" + getPortAsInt() + "|" + getVirtualHost() + "|" + getUsername() + "|" + getPassword()
+                + "|" + getsslKeyStore() + "|" + getsslKeyStorePass() + "|" + getsslTrustStore() + "|" + getsslTrustStorePass()
+                + "|" + getTimeoutAsInt();
+    }
+
     protected void cleanup() {
         try {
             //getChannel().close();   // closing the connection will close the channel if it's still open
-            if (connection != null && connection.isOpen())
+            if (pooledConnection) {
+                // the connection is shared, so only our own channel goes away with it
+                Channel channel = getChannel();
+                if (channel != null && channel.isOpen()) {
+                    channel.close();
+                }
+                releaseConnection();
+            } else if (connection != null && connection.isOpen())
                 connection.close();
         } catch (IOException e) {
             log.error("Failed to close connection", e);
         }
     }
 
+    private void releaseConnection() {
+        if (connection != null) {
+            AMQPConnectionPool.release(connection, leasedChannels);
+            connection = null;
+        }
+        pooledConnection = false;
+    }
+
     @Override
     public void threadFinished() {
         log.info("AMQPSamplerSSL.threadFinished called");
@@ -484,29 +539,43 @@ public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadLi
 
     }
 
-    protected Channel createChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, KeyStoreException, CertificateException, UnrecoverableKeyException {
-        log.info("Creating channel " + getVirtualHost() + ":" + getPortAsInt());
+    @Override
+    public void testStarted() {
+    }
 
-        if (connection == null || !connection.isOpen()) {
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded() {
+        ConnectionBlocking.closeAll();
+        SSLContextCache.logStats();
+    }
 
-            char[] keyPassphrase = getsslKeyStorePass().toCharArray();
-            KeyStore keystore = KeyStore.getInstance("PKCS12");
-            keystore.load(new FileInputStream(getsslKeyStore()), keyPassphrase);
-            //ks.load(new FileInputStream("/Users/mmoss/Documents/consulting/canary/certs/client/keycert.p12"), keyPassphrase);
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
 
-            KeyManagerFactory keyManager = KeyManagerFactory.getInstance("SunX509");
-            keyManager.init(keystore, getsslKeyStorePass().toCharArray());
+    /**
+     * @return the tracker of the broker blocking this thread's connection, or null before it is opened
+     */
+    protected ConnectionBlocking getConnectionBlocking() {
+        return blocking;
+    }
 
-            char[] trustPassphrase = getsslTrustStorePass().toCharArray();
-            KeyStore trustStore = KeyStore.getInstance("JKS");
-            trustStore.load(new FileInputStream(getsslTrustStore()), trustPassphrase);
-            //tks.load(new FileInputStream("/Users/mmoss/Documents/consulting/canary/certs/trustStore"), trustPassphrase);
+    protected Channel createChannel() throws IOException, NoSuchAlgorithmException, KeyManagementException, KeyStoreException, CertificateException, UnrecoverableKeyException {
+        log.info("Creating channel " + getVirtualHost() + ":" + getPortAsInt());
 
-            TrustManagerFactory trustManager = TrustManagerFactory.getInstance("SunX509");
-            trustManager.init(trustStore);
+        if (connection == null || !connection.isOpen()) {
 
-            SSLContext sslContext = SSLContext.getInstance("SSLv3");
-            sslContext.init(keyManager.getKeyManagers(), trustManager.getTrustManagers(), null);
+            SSLContext sslContext = SSLContextCache.getContext(getsslKeyStore(), getsslKeyStorePass(),
+                    getsslTrustStore(), getsslTrustStorePass(), SSL_PROTOCOL);
 
 
             factory.setConnectionTimeout(getTimeoutAsInt());
@@ -533,7 +602,19 @@ public abstract class AMQPSamplerSSL extends AbstractSampler implements ThreadLi
                 addresses[i] = new Address(hosts[i], getPortAsInt());
             }
             log.info("Using hosts: " + Arrays.toString(hosts) + " addresses: " + Arrays.toString(addresses));
-            connection = factory.newConnection(addresses);
+            if (pooledConnection) {
+                releaseConnection(); // give back the lease on the connection that went away
+            }
+            int channelsPerConnection = getChannelsPerConnectionAsInt();
+            if (channelsPerConnection > 1) {
+                leasedChannels = getChannelsPerThread();
+                connection = AMQPConnectionPool.acquire(getConnectionKey(), channelsPerConnection, leasedChannels,
+                        factory, addresses);
+                pooledConnection = true;
+            } else {
+                connection = factory.newConnection(addresses);
+            }
+            blocking = ConnectionBlocking.watch(connection, connection.getAddress().getHostAddress() + ":" + connection.getPort());
         }
 
         Channel channel = connection.createChannel();
@@ -0,0 +1,307 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Declares or deletes a whole series of queues in one sample, such as
+ * "queue-{0..9999}", each bound to the sampler's exchange with a key from a
+ * second pattern such as "key.{n}", see {@link NamePattern}.
+ *
+ * The queues are spread over a pool of channels declaring in parallel, so
+ * the broker sees as many outstanding declares as there are channels. The
+ * sample reports the throughput and the latency of the declares. A queue
+ * that fails to declare closes its channel, which is then reopened for the
+ * next queue.
+ *
+ * Meant to be run once, from a setUp thread group for the declares and a
+ * tearDown thread group for the deletes.
+ */
+public class AMQPTopologyGenerator extends AMQPSampler {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String ACTION_DECLARE = "declare";
+    public static final String ACTION_DELETE = "delete";
+    public static final String[] ACTIONS = new String[]{ACTION_DECLARE, ACTION_DELETE};
+    public static final String DEFAULT_ACTION = ACTION_DECLARE;
+
+    public static final int DEFAULT_DECLARE_CHANNELS = 8;
+    public static final String DEFAULT_DECLARE_CHANNELS_STRING = Integer.toString(DEFAULT_DECLARE_CHANNELS);
+
+    //++ These are JMX names, and must not be changed
+    private final static String QUEUE_PATTERN = "AMQPTopologyGenerator.QueuePattern";
+    private final static String BINDING_KEY_PATTERN = "AMQPTopologyGenerator.BindingKeyPattern";
+    private final static String ACTION = "AMQPTopologyGenerator.Action";
+    private final static String DECLARE_CHANNELS = "AMQPTopologyGenerator.DeclareChannels";
+
+    private transient Channel channel;
+    private transient Channel[] channels;
+    private transient ExecutorService executor;
+
+    public AMQPTopologyGenerator() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode("500");
+
+        final NamePattern queues;
+        final NamePattern bindingKeys;
+        try {
+            queues = new NamePattern(getQueuePattern());
+            bindingKeys = new NamePattern(getBindingKeyPattern());
+            initChannel();
+            initChannels();
+        } catch (Exception ex) {
+            log.error("Failed to initialize channel : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        final boolean declare = !ACTION_DELETE.equals(getAction());
+        final boolean bind = !StringUtils.isBlank(getExchange());
+        final Map<String, Object> arguments = getQueueArguments();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final LatencyHistogram[] latencies = new LatencyHistogram[channels.length];
+
+        result.setSampleLabel(getTitle());
+        result.setSamplerData(getAction() + " " + queues + (bind && declare ? " bound to " + getExchange()
+                + " with " + bindingKeys : ""));
+        result.sampleStart(); // Start timing
+        long start = System.nanoTime();
+        try {
+            Future<?>[] tasks = new Future<?>[channels.length];
+            for (int i = 0; i < channels.length; i++) {
+                final int worker = i;
+                latencies[worker] = new LatencyHistogram();
+                tasks[worker] = executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int index = next.getAndIncrement(); index < queues.size(); index = next.getAndIncrement()) {
+                            String queue = queues.nameAt(index);
+                            long opStart = System.nanoTime();
+                            try {
+                                Channel workerChannel = getWorkerChannel(worker);
+                                if (declare) {
+                                    workerChannel.queueDeclare(queue, queueDurable(), queueExclusive(),
+                                            queueAutoDelete(), arguments);
+                                    if (bind) {
+                                        workerChannel.queueBind(queue, getExchange(),
+                                                bindingKeys.format(queues.numberAt(index)));
+                                    }
+                                } else {
+                                    workerChannel.queueDelete(queue); // takes its bindings with it
+                                }
+                                latencies[worker].record(System.nanoTime() - opStart);
+                            } catch (Exception ex) {
+                                if (failures.getAndIncrement() == 0) {
+                                    log.warn("Failed to " + getAction() + " queue " + queue, ex);
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            if (!declare && bind && !getExchange().startsWith("amq.")) {
+                channel.exchangeDelete(getExchange());
+            }
+
+            int failed = failures.get();
+            if (failed > 0) {
+                result.setResponseMessage(failed + " of " + queues.size() + " queues failed to " + getAction());
+            } else {
+                result.setResponseCodeOK();
+                result.setResponseMessage("OK");
+                result.setSuccessful(true);
+            }
+            result.setResponseData(result.getResponseMessage(), null);
+            result.setDataType(SampleResult.TEXT);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            result.setResponseMessage(ex.toString());
+        } catch (Exception ex) {
+            log.debug(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            result.sampleEnd(); // End timimg
+            long elapsed = System.nanoTime() - start;
+            LatencyHistogram latency = new LatencyHistogram();
+            for (LatencyHistogram workerLatency : latencies) {
+                if (workerLatency != null) {
+                    latency.add(workerLatency);
+                }
+            }
+            addResponseHeader(result, "topology-ops", latency.getCount());
+            addResponseHeader(result, "topology-failures", failures.get());
+            addResponseHeader(result, "throughput", elapsed > 0 ? latency.getCount() * 1000000000L / elapsed : 0);
+            addResponseHeader(result, getAction() + "-latency", latency.summary());
+            HistogramLog.Recorder recorder = getRecorder(getAction());
+            if (recorder != null) {
+                recorder.add(latency);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Open the pool of channels the declares are spread over, with a thread
+     * for each.
+     */
+    private void initChannels() {
+        int count = getDeclareChannelsAsInt();
+        if (channels != null && channels.length == count) {
+            return;
+        }
+        closeChannels();
+        channels = new Channel[count];
+        final String prefix = "AMQP topology " + getTitle() + "-";
+        executor = Executors.newFixedThreadPool(count, new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /*
+     * The channel of a worker, reopened should a failed declare have closed it.
+     */
+    private Channel getWorkerChannel(int worker) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+        Channel workerChannel = channels[worker];
+        if (workerChannel == null || !workerChannel.isOpen()) {
+            synchronized (this) { // the connection is opened by the first caller
+                workerChannel = createChannel();
+            }
+            channels[worker] = workerChannel;
+        }
+        return workerChannel;
+    }
+
+    private void closeChannels() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (channels != null) {
+            for (Channel workerChannel : channels) {
+                try {
+                    if (workerChannel != null && workerChannel.isOpen()) {
+                        workerChannel.close();
+                    }
+                } catch (Exception ex) {
+                    log.debug("Failed to close channel", ex);
+                }
+            }
+            channels = null;
+        }
+    }
+
+    /**
+     * @return the pattern of the queue names, such as queue-{0..9999}
+     */
+    public String getQueuePattern() {
+        return getPropertyAsString(QUEUE_PATTERN);
+    }
+
+    public void setQueuePattern(String pattern) {
+        setProperty(QUEUE_PATTERN, pattern);
+    }
+
+    /**
+     * @return the pattern of the binding keys, such as key.{n} with n the number of the queue
+     */
+    public String getBindingKeyPattern() {
+        return getPropertyAsString(BINDING_KEY_PATTERN);
+    }
+
+    public void setBindingKeyPattern(String pattern) {
+        setProperty(BINDING_KEY_PATTERN, pattern);
+    }
+
+    /**
+     * @return whether the queues are declared or deleted
+     */
+    public String getAction() {
+        return getPropertyAsString(ACTION, DEFAULT_ACTION);
+    }
+
+    public void setAction(String action) {
+        setProperty(ACTION, action);
+    }
+
+    /**
+     * @return the number of channels declaring in parallel
+     */
+    public String getDeclareChannels() {
+        return getPropertyAsString(DECLARE_CHANNELS, DEFAULT_DECLARE_CHANNELS_STRING);
+    }
+
+    public void setDeclareChannels(String channels) {
+        setProperty(DECLARE_CHANNELS, channels);
+    }
+
+    protected int getDeclareChannelsAsInt() {
+        if (getPropertyAsInt(DECLARE_CHANNELS) < 1) {
+            return DEFAULT_DECLARE_CHANNELS;
+        }
+        return getPropertyAsInt(DECLARE_CHANNELS);
+    }
+
+    /**
+     * {@inheritDoc} The declaring channels besides the sampler's own.
+     */
+    @Override
+    protected int getChannelsPerThread() {
+        return 1 + getDeclareChannelsAsInt();
+    }
+
+    @Override
+    protected Channel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    protected void cleanup() {
+        closeChannels();
+        super.cleanup();
+    }
+}
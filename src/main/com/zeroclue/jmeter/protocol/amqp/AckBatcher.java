@@ -0,0 +1,132 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Acknowledges the deliveries of a channel in batches, with one basic.ack
+ * frame carrying the multiple flag for every batch instead of one frame per
+ * delivery.
+ *
+ * A batch is acknowledged once it holds batchSize deliveries or its oldest
+ * delivery waited maxDelay, whichever comes first. Delivery tags on a channel
+ * increase, so acknowledging the last one acknowledges the whole batch; the
+ * deliveries must therefore be handed in in the order they arrived.
+ *
+ * Ack lag, the time from handing a delivery in to acknowledging it, is kept
+ * per delivery in a ring of primitive longs.
+ */
+public class AckBatcher {
+
+    private final Channel channel;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long[] pendingSince;
+
+    private int pending;
+    private long lastTag;
+
+    private long frames;
+    private long acked;
+    private final LatencyHistogram lag = new LatencyHistogram();
+
+    /**
+     * @param channel the channel the deliveries arrived on
+     * @param batchSize the number of deliveries acknowledged together
+     * @param maxDelayMillis how long a delivery may wait for its batch to fill
+     */
+    public AckBatcher(Channel channel, int batchSize, long maxDelayMillis) {
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.pendingSince = new long[batchSize];
+    }
+
+    /**
+     * @param channel a channel
+     * @return whether the batcher acknowledges deliveries of the given channel
+     */
+    public boolean isFor(Channel channel) {
+        return this.channel == channel;
+    }
+
+    /**
+     * Add a processed delivery to the batch, acknowledging the batch if it is full or due.
+     *
+     * @param deliveryTag the tag of the delivery
+     * @throws IOException if the acknowledgement could not be sent
+     */
+    public synchronized void delivered(long deliveryTag) throws IOException {
+        if (pending == pendingSince.length) {
+            flush(); // a failed flush left the batch full
+        }
+        long now = System.nanoTime();
+        pendingSince[pending++] = now;
+        lastTag = deliveryTag;
+        if (pending >= batchSize || now - pendingSince[0] >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the milliseconds until the current batch is due, or -1 if it is empty
+     */
+    public synchronized long millisUntilDue() {
+        if (pending == 0) {
+            return -1;
+        }
+        long due = pendingSince[0] + maxDelayNanos - System.nanoTime();
+        return due <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(due) + 1;
+    }
+
+    /**
+     * Acknowledge the batch if its oldest delivery waited long enough.
+     *
+     * @throws IOException if the acknowledgement could not be sent
+     */
+    public synchronized void flushIfDue() throws IOException {
+        if (pending > 0 && System.nanoTime() - pendingSince[0] >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Acknowledge all deliveries handed in so far.
+     *
+     * @throws IOException if the acknowledgement could not be sent
+     */
+    public synchronized void flush() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        if (!channel.isOpen()) {
+            pending = 0; // on a closed channel the broker redelivers them anyway
+            return;
+        }
+        channel.basicAck(lastTag, true);
+        long now = System.nanoTime();
+        for (int i = 0; i < pending; i++) {
+            lag.record(now - pendingSince[i]);
+        }
+        frames++;
+        acked += pending;
+        pending = 0;
+    }
+
+    /**
+     * Copy the ack lags recorded since the last call into the given histogram and start a new interval.
+     *
+     * @param into histogram receiving the ack lags of the interval
+     * @return the ack frames sent and deliveries acknowledged in the interval
+     */
+    public synchronized long[] drain(LatencyHistogram into) {
+        long[] counts = new long[]{frames, acked};
+        into.add(lag);
+        lag.reset();
+        frames = 0;
+        acked = 0;
+        return counts;
+    }
+}
@@ -0,0 +1,214 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Open model send schedule shared by all threads of a sampler.
+ *
+ * The schedule fixes when the n-th message of the test is meant to be sent,
+ * independent of how long earlier sends took. Threads claim the next intended
+ * send time, wait for it and measure from it, so a stalled broker shows up as
+ * latency and as a backlog of late sends instead of silently lowering the
+ * offered load.
+ *
+ * Profiles:
+ * <ul>
+ * <li>constant: rate messages per second</li>
+ * <li>step: rate, 2 x rate, 3 x rate ... changing every period, capped at the target rate</li>
+ * <li>ramp: linear from rate to the target rate over the period, then the target rate</li>
+ * </ul>
+ */
+public final class ArrivalSchedule {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String PROFILE_NONE = "none";
+    public static final String PROFILE_CONSTANT = "constant";
+    public static final String PROFILE_STEP = "step";
+    public static final String PROFILE_RAMP = "ramp";
+    public static final String[] PROFILES = new String[]{PROFILE_NONE, PROFILE_CONSTANT, PROFILE_STEP, PROFILE_RAMP};
+
+    // parking is too coarse for the last stretch, so it is spun instead
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final Map<String, ArrivalSchedule> schedules = new HashMap<String, ArrivalSchedule>();
+
+    private final String profile;
+    private final double rate;
+    private final double targetRate;
+    private final double period;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+
+    ArrivalSchedule(String profile, double rate, double targetRate, double periodSeconds) {
+        boolean varying = (PROFILE_STEP.equals(profile) || PROFILE_RAMP.equals(profile))
+                && targetRate > 0 && periodSeconds > 0;
+        this.profile = varying ? profile : PROFILE_CONSTANT;
+        this.rate = rate;
+        this.targetRate = varying ? targetRate : rate;
+        this.period = periodSeconds;
+    }
+
+    /**
+     * Return the schedule shared by the threads of a sampler, starting it on first use.
+     *
+     * @param name the sampler the schedule belongs to
+     * @param profile one of {@link #PROFILES}
+     * @param rate the (initial) rate in messages per second
+     * @param targetRate the final rate of the step and ramp profiles
+     * @param periodSeconds the step length or ramp duration
+     * @return the schedule, or null if the profile is none or the rate not positive
+     */
+    public static synchronized ArrivalSchedule forSampler(String name, String profile, double rate,
+                                                          double targetRate, double periodSeconds) {
+        if (PROFILE_NONE.equals(profile) || rate <= 0) {
+            return null;
+        }
+        ArrivalSchedule schedule = schedules.get(name);
+        if (schedule == null) {
+            schedule = new ArrivalSchedule(profile, rate, targetRate, periodSeconds);
+            schedules.put(name, schedule);
+            log.info("Publishing " + name + " at " + schedule);
+        }
+        return schedule;
+    }
+
+    /**
+     * Log how far behind every schedule ended up and forget them.
+     */
+    public static synchronized void closeAll() {
+        for (Map.Entry<String, ArrivalSchedule> entry : schedules.entrySet()) {
+            ArrivalSchedule schedule = entry.getValue();
+            log.info("Schedule of " + entry.getKey() + ": " + schedule.next.get() + " sends, "
+                    + schedule.late.get() + " late, backlog " + schedule.getBacklog());
+        }
+        schedules.clear();
+    }
+
+    /**
+     * Claim the next send of the schedule.
+     *
+     * @return its intended send time, in System.nanoTime() terms
+     */
+    public long next() {
+        return startNanos + toNanos(timeOf(next.getAndIncrement()));
+    }
+
+    /**
+     * Count a send that started later than intended.
+     */
+    public void late() {
+        late.incrementAndGet();
+    }
+
+    /**
+     * @return the number of sends whose intended time has passed but that have not been claimed yet
+     */
+    public long getBacklog() {
+        long due = (long) countAt((System.nanoTime() - startNanos) / 1e9);
+        return Math.max(0, due - next.get());
+    }
+
+    /**
+     * Wait until the given time, parking while it is far away and spinning for the last microseconds.
+     *
+     * @param deadline a System.nanoTime() value
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * @param n the index of a send
+     * @return the intended time of the send in seconds since the start
+     */
+    double timeOf(long n) {
+        if (PROFILE_RAMP.equals(profile)) {
+            double rampCount = (rate + targetRate) / 2 * period;
+            if (n < rampCount) {
+                // solve rate t + (targetRate - rate) t^2 / 2 period = n, in a form stable for a flat ramp
+                double a = (targetRate - rate) / (2 * period);
+                return 2 * n / (rate + Math.sqrt(rate * rate + 4 * a * n));
+            }
+            return period + (n - rampCount) / targetRate;
+        }
+        if (PROFILE_STEP.equals(profile)) {
+            long steps = stepsBelowTarget();
+            double stepsCount = stepCount(steps);
+            if (n < stepsCount) {
+                long step = (long) ((Math.sqrt(1 + 8 * n / (rate * period)) - 1) / 2);
+                step = Math.max(0, Math.min(step, steps - 1));
+                while (step > 0 && stepCount(step) > n) {
+                    step--;
+                }
+                while (step + 1 < steps && stepCount(step + 1) <= n) {
+                    step++;
+                }
+                return step * period + (n - stepCount(step)) / (rate * (step + 1));
+            }
+            return steps * period + (n - stepsCount) / targetRate;
+        }
+        return n / rate;
+    }
+
+    /**
+     * @param t seconds since the start
+     * @return the number of sends intended up to that time
+     */
+    double countAt(double t) {
+        if (PROFILE_RAMP.equals(profile)) {
+            if (t < period) {
+                return rate * t + (targetRate - rate) * t * t / (2 * period);
+            }
+            return (rate + targetRate) / 2 * period + (t - period) * targetRate;
+        }
+        if (PROFILE_STEP.equals(profile)) {
+            long steps = stepsBelowTarget();
+            long step = (long) (t / period);
+            if (step < steps) {
+                return stepCount(step) + (t - step * period) * rate * (step + 1);
+            }
+            return stepCount(steps) + (t - steps * period) * targetRate;
+        }
+        return t * rate;
+    }
+
+    // the number of steps run at a multiple of the rate below the target rate
+    private long stepsBelowTarget() {
+        return Math.max(0, (long) Math.ceil(targetRate / rate) - 1);
+    }
+
+    // the number of sends intended in the first steps
+    private double stepCount(long steps) {
+        return rate * period * steps * (steps + 1) / 2;
+    }
+
+    private static long toNanos(double seconds) {
+        return (long) (seconds * 1e9);
+    }
+
+    @Override
+    public String toString() {
+        if (PROFILE_CONSTANT.equals(profile)) {
+            return rate + " msg/s";
+        }
+        return profile + " from " + rate + " to " + targetRate + " msg/s over " + period + "s";
+    }
+}
@@ -0,0 +1,177 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Tracks when the broker blocks a connection, which it does to every
+ * publishing connection while a memory or disk alarm is in effect. A
+ * blocked connection stops reading from its socket, so publishes stall
+ * without error; the intervals recorded here tell that flow control apart
+ * from a slow network.
+ *
+ * There is one tracker per connection, however many samplers share it. A
+ * blocked interval ends when the broker unblocks the connection, or when the
+ * connection shuts down.
+ */
+public final class ConnectionBlocking implements BlockedListener, ShutdownListener {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final Map<Connection, ConnectionBlocking> trackers = new WeakHashMap<Connection, ConnectionBlocking>();
+
+    // the trackers of connections shut down before the end of the test, which may be collected since
+    private static final List<ConnectionBlocking> shutDown = new ArrayList<ConnectionBlocking>();
+
+    private final String name;
+    private volatile boolean blocked;
+    private long blockedSince;
+    private long blockedNanos;
+    private long episodes;
+    private String reason;
+
+    private ConnectionBlocking(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the tracker of a connection, registering it on first use.
+     *
+     * @param connection the connection
+     * @param name describes the connection in the log
+     * @return the tracker
+     */
+    public static synchronized ConnectionBlocking watch(Connection connection, String name) {
+        ConnectionBlocking tracker = trackers.get(connection);
+        if (tracker == null) {
+            tracker = new ConnectionBlocking(name);
+            connection.addBlockedListener(tracker);
+            connection.addShutdownListener(tracker);
+            trackers.put(connection, tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * Log how long the connections of the test were blocked, including those
+     * shut down already, and forget them.
+     */
+    public static synchronized void closeAll() {
+        long total = 0;
+        int connections = 0;
+        Set<ConnectionBlocking> all = new LinkedHashSet<ConnectionBlocking>(shutDown);
+        all.addAll(trackers.values());
+        for (ConnectionBlocking tracker : all) {
+            long nanos = tracker.getBlockedNanos();
+            if (tracker.getEpisodes() > 0) {
+                log.info("Connection to " + tracker.name + " was blocked " + tracker.getEpisodes() + " times for "
+                        + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms, last because of " + tracker.reason);
+                total += nanos;
+                connections++;
+            }
+        }
+        if (connections > 0) {
+            log.warn("The broker blocked " + connections + " of " + all.size() + " connections for "
+                    + TimeUnit.NANOSECONDS.toMillis(total) + " ms in total");
+        }
+        trackers.clear();
+        shutDown.clear();
+    }
+
+    private static synchronized void retain(ConnectionBlocking tracker) {
+        if (!shutDown.contains(tracker)) {
+            shutDown.add(tracker);
+        }
+    }
+
+    @Override
+    public synchronized void handleBlocked(String reason) {
+        if (!blocked) {
+            blocked = true;
+            blockedSince = System.nanoTime();
+            episodes++;
+            this.reason = reason;
+            log.warn("Connection to " + name + " blocked by the broker: " + reason);
+        }
+    }
+
+    @Override
+    public void handleUnblocked() {
+        if (endInterval()) {
+            log.info("Connection to " + name + " unblocked");
+        }
+    }
+
+    @Override
+    public void shutdownCompleted(ShutdownSignalException cause) {
+        endInterval();
+        retain(this); // the connection, and with it this entry of the trackers, may be collected before closeAll
+    }
+
+    private synchronized boolean endInterval() {
+        if (!blocked) {
+            return false;
+        }
+        blockedNanos += System.nanoTime() - blockedSince;
+        blocked = false;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return whether the connection is blocked right now
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return the nanoseconds the connection was blocked so far, including the current interval
+     */
+    public synchronized long getBlockedNanos() {
+        return blocked ? blockedNanos + System.nanoTime() - blockedSince : blockedNanos;
+    }
+
+    /**
+     * @return the number of times the connection was blocked so far
+     */
+    public synchronized long getEpisodes() {
+        return episodes;
+    }
+
+    /**
+     * Wait for the broker to unblock the connection, or for the connection to
+     * shut down, for at most the given time. The wait ends early on {@link #wakeWaiters()}.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return whether the connection is unblocked
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public synchronized boolean awaitUnblocked(long timeoutMillis) throws InterruptedException {
+        if (blocked) {
+            wait(timeoutMillis);
+        }
+        return !blocked;
+    }
+
+    /**
+     * Wake the threads waiting for the connection to be unblocked, so a
+     * stopping sampler need not wait for its next check.
+     */
+    public synchronized void wakeWaiters() {
+        notifyAll();
+    }
+}
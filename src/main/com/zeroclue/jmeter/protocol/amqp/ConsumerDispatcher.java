@@ -0,0 +1,336 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Several consumers of one sampler, each on its own channel of the sampler's
+ * connection, handing their deliveries to a pool of worker threads.
+ *
+ * The connection threads only enqueue deliveries; the workers measure their
+ * end-to-end latency and acknowledge them. The sampler thread just waits for
+ * the workers to have processed the number of messages of a sample, so one
+ * JMeter thread can drain a queue as fast as several consumers can.
+ *
+ * A connection thread waits for space when the buffer is full, which holds
+ * up every other channel of the connection, so the consumers' prefetch
+ * counts together must not exceed the buffer's capacity.
+ */
+public class ConsumerDispatcher {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final AtomicInteger dispatchers = new AtomicInteger();
+
+    private static final long OFFER_MILLIS = 100;
+
+    private final BlockingQueue<Delivery> deliveries;
+    private final Worker[] workers;
+    private final ExecutorService executor;
+    private final boolean autoAck;
+    private final String timestamp;
+    private final long clockOffsetNanos;
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private final List<String> consumerTags = new ArrayList<String>();
+
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private volatile boolean closed;
+    private volatile long waitTarget = Long.MAX_VALUE;
+    private volatile Thread waiter;
+    private volatile RuntimeException failure;
+    private volatile byte[] lastBody;
+    private volatile SequenceTracker integrity;
+
+    /**
+     * @param workerCount the number of worker threads
+     * @param capacity the number of deliveries buffered for the workers
+     * @param timestamp where publishers stamped the send timestamp, one of {@link SendTimestamps#MODES}
+     * @param clockOffsetNanos how far this generator's clock runs ahead of the publishers'
+     * @param autoAck whether the broker considers deliveries acknowledged on sending
+     */
+    public ConsumerDispatcher(int workerCount, int capacity, String timestamp, long clockOffsetNanos, boolean autoAck) {
+        this.deliveries = new ArrayBlockingQueue<Delivery>(capacity);
+        this.timestamp = timestamp;
+        this.clockOffsetNanos = clockOffsetNanos;
+        this.autoAck = autoAck;
+        this.workers = new Worker[workerCount];
+        final String prefix = "AMQP consumer worker " + dispatchers.incrementAndGet() + "-";
+        this.executor = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker();
+            executor.execute(workers[i]);
+        }
+    }
+
+    /**
+     * Have the workers check each delivery's integrity headers.
+     *
+     * @param tracker the tracker to check deliveries with, or null to check none
+     */
+    public void setIntegrity(SequenceTracker tracker) {
+        this.integrity = tracker;
+    }
+
+    /**
+     * Start one more consumer on the given channel.
+     *
+     * @param channel a channel of its own for the consumer
+     * @param queue the queue to consume from
+     * @throws IOException if the consumer could not be started
+     */
+    public void consume(Channel channel, String queue) throws IOException {
+        channels.add(channel);
+        consumerTags.add(channel.basicConsume(queue, autoAck, new DispatchingConsumer(channel)));
+    }
+
+    /**
+     * @return the number of deliveries the workers processed so far
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Wait until the workers processed the given number of deliveries in total.
+     *
+     * @param target the total to wait for
+     * @param timeoutMillis the maximum time to wait
+     * @return true if reached, false on timeout
+     * @throws InterruptedException if the sampler thread is interrupted
+     * @throws ShutdownSignalException if a consumer's channel or the connection shut down
+     * @throws ConsumerCancelledException if the broker cancelled a consumer
+     */
+    public boolean awaitProcessed(long target, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiter = Thread.currentThread();
+        waitTarget = target;
+        try {
+            while (processed.get() < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waitTarget = Long.MAX_VALUE;
+            waiter = null;
+        }
+    }
+
+    /**
+     * @return the auto-acknowledged deliveries dropped because the dispatcher was closed or failed
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * @return the deliveries each worker processed since the last call
+     */
+    public long[] drainWorkerCounts() {
+        long[] counts = new long[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            counts[i] = workers[i].count.getAndSet(0);
+        }
+        return counts;
+    }
+
+    /**
+     * Move the end-to-end latencies the workers recorded since the last call into the given histogram.
+     */
+    public void drainLatency(LatencyHistogram into) {
+        for (Worker worker : workers) {
+            worker.moveLatencyTo(into);
+        }
+    }
+
+    /**
+     * @return the body of the most recently processed delivery
+     */
+    public byte[] getLastBody() {
+        return lastBody;
+    }
+
+    /**
+     * Cancel the consumers, close their channels and stop the workers.
+     * Deliveries still buffered are left unacknowledged, so the broker
+     * redelivers them, unless they were auto-acknowledged; those are lost.
+     */
+    public void close() {
+        closed = true;
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get(i);
+            try {
+                if (channel.isOpen()) {
+                    channel.basicCancel(consumerTags.get(i));
+                    channel.close();
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't safely close consumer " + consumerTags.get(i), e);
+            } catch (ShutdownSignalException e) {
+                log.debug("Channel already closed", e);
+            }
+        }
+        executor.shutdownNow();
+        int dropped = deliveries.drainTo(new ArrayList<Delivery>());
+        if (autoAck && dropped > 0) {
+            lost.addAndGet(dropped);
+            log.warn(dropped + " auto-acknowledged deliveries lost, they were still buffered when the dispatcher closed");
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        failure = e;
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private static final class Delivery {
+        final Channel channel;
+        final long deliveryTag;
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+
+        Delivery(Channel channel, long deliveryTag, AMQP.BasicProperties properties, byte[] body) {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+
+    private final class DispatchingConsumer extends DefaultConsumer {
+
+        DispatchingConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+            Delivery delivery = new Delivery(getChannel(), envelope.getDeliveryTag(), properties, body);
+            try {
+                // waits while the workers are behind, in slices so a closed or failed dispatcher lets go
+                while (!deliveries.offer(delivery, OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (closed || failure != null) {
+                        drop();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                drop();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void drop() {
+            // unacked deliveries are redelivered, auto-acked ones are lost
+            if (autoAck && lost.getAndIncrement() == 0) {
+                log.warn("Auto-acknowledged deliveries lost, the dispatcher was stopped with its buffer full");
+            }
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (!sig.isInitiatedByApplication()) {
+                fail(sig);
+            }
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            fail(new ConsumerCancelledException());
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final AtomicLong count = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        @Override
+        public void run() {
+            boolean measureLatency = !SendTimestamps.MODE_NONE.equals(timestamp);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Delivery delivery = deliveries.take();
+                    if (measureLatency) {
+                        long sent = SendTimestamps.read(timestamp, delivery.properties, delivery.body);
+                        if (sent >= 0) {
+                            recordLatency(SendTimestamps.now() - clockOffsetNanos - sent);
+                        }
+                    }
+                    SequenceTracker tracker = integrity;
+                    if (tracker != null) {
+                        tracker.check(delivery.properties, delivery.body);
+                    }
+                    if (!autoAck) {
+                        delivery.channel.basicAck(delivery.deliveryTag, false);
+                    }
+                    lastBody = delivery.body;
+                    count.incrementAndGet();
+                    if (processed.incrementAndGet() >= waitTarget) {
+                        Thread thread = waiter;
+                        if (thread != null) {
+                            LockSupport.unpark(thread);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                log.warn("Worker failed to acknowledge a delivery", e);
+                fail(new IllegalStateException("Worker failed to acknowledge a delivery: " + e));
+            } catch (ShutdownSignalException e) {
+                fail(e);
+            }
+        }
+
+        private synchronized void recordLatency(long nanos) {
+            latency.record(nanos);
+        }
+
+        synchronized void moveLatencyTo(LatencyHistogram into) {
+            into.add(latency);
+            latency.reset();
+        }
+    }
+}
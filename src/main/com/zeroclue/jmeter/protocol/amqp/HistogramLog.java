@@ -0,0 +1,280 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Interval histogram log shared by all samplers writing to the same file.
+ *
+ * Every sampler thread records into its own {@link Recorder}, so recording
+ * only ever contends with the log writer. The writer periodically merges the
+ * recorders of each series into one interval histogram and appends it to the
+ * log, and writes the totals of the whole run when the test ends, so p99.9
+ * and p99.99 can be analysed without a listener on every sample.
+ *
+ * Each histogram is written encoded, with all its bucket counts, followed by
+ * a comment line with its percentiles in microseconds for reading. Percentiles
+ * cannot be combined, but the histograms can: {@link #merge(List)}, or the
+ * main method, merges the intervals of the logs of several load generators.
+ */
+public final class HistogramLog {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final Map<String, HistogramLog> logs = new HashMap<String, HistogramLog>();
+
+    private static final double[] PERCENTILES = new double[]{50, 90, 99, 99.9, 99.99};
+
+    private static final String TOTALS = "#[Totals]";
+
+    private final String path;
+    private final PrintWriter out;
+    private final long startMillis = System.currentTimeMillis();
+    private long intervalStartMillis = startMillis;
+    private final Map<String, List<Recorder>> series = new LinkedHashMap<String, List<Recorder>>();
+    private final Map<String, LatencyHistogram> totals = new HashMap<String, LatencyHistogram>();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private ScheduledExecutorService scheduler;
+
+    private HistogramLog(String path) throws IOException {
+        this.path = path;
+        this.out = new PrintWriter(new FileWriter(path));
+        out.println("#[Histogram interval log, encoded latency histograms in nanoseconds]");
+        out.println("#[StartTime: " + String.format("%.3f", startMillis / 1000.0) + " (seconds since epoch), " + new Date(startMillis) + "]");
+        out.println("#[Each histogram is followed by its summary: #Count,Min,Mean,p50,p90,p99,p99.9,p99.99,Max in microseconds]");
+        out.println("\"StartTimestamp\",\"Interval_Length\",\"Series\",\"Histogram\"");
+        out.flush();
+    }
+
+    /**
+     * Return the log writing to the given file, opening it on first use.
+     *
+     * @param path the file to write to
+     * @param intervalSeconds how often to write interval histograms, 0 to only write totals at test end
+     * @return the log for the file
+     * @throws IOException if the file cannot be opened
+     */
+    public static synchronized HistogramLog forFile(String path, int intervalSeconds) throws IOException {
+        HistogramLog histogramLog = logs.get(path);
+        if (histogramLog == null) {
+            histogramLog = new HistogramLog(path);
+            if (intervalSeconds > 0) {
+                histogramLog.schedule(intervalSeconds);
+            }
+            logs.put(path, histogramLog);
+            log.info("Writing latency histograms to " + path);
+        }
+        return histogramLog;
+    }
+
+    /**
+     * Write the last interval and the totals of every open log, and close them.
+     */
+    public static synchronized void closeAll() {
+        for (HistogramLog histogramLog : logs.values()) {
+            histogramLog.close();
+        }
+        logs.clear();
+    }
+
+    /**
+     * @param name the series the recorder contributes to, e.g. "Publisher.publish"
+     * @return a new recorder for the calling sampler thread
+     */
+    public synchronized Recorder register(String name) {
+        List<Recorder> recorders = series.get(name);
+        if (recorders == null) {
+            recorders = new ArrayList<Recorder>();
+            series.put(name, recorders);
+            totals.put(name, new LatencyHistogram());
+        }
+        Recorder recorder = new Recorder();
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    private void schedule(int intervalSeconds) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AMQP histogram log " + path);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                writeInterval();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private synchronized void writeInterval() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<Recorder>> entry : series.entrySet()) {
+            interval.reset();
+            for (Recorder recorder : entry.getValue()) {
+                recorder.moveTo(interval);
+            }
+            totals.get(entry.getKey()).add(interval);
+            if (interval.getCount() > 0) {
+                writeLine(intervalStartMillis, now, entry.getKey(), interval);
+            }
+        }
+        intervalStartMillis = now;
+        out.flush();
+    }
+
+    private synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        writeInterval();
+        long now = System.currentTimeMillis();
+        out.println(TOTALS);
+        for (Map.Entry<String, LatencyHistogram> entry : totals.entrySet()) {
+            writeLine(startMillis, now, entry.getKey(), entry.getValue());
+            log.info("Latency of " + entry.getKey() + ": " + entry.getValue().summary());
+        }
+        out.close();
+    }
+
+    private void writeLine(long from, long to, String name, LatencyHistogram histogram) {
+        out.println((from - startMillis) / 1000.0 + "," + (to - from) / 1000.0 + ",\"" + name + "\","
+                + histogram.encode());
+        StringBuilder summary = new StringBuilder("#");
+        summary.append(histogram.getCount()).append(',')
+                .append(micros(histogram.getMin())).append(',')
+                .append(micros(histogram.getMean()));
+        for (double percentile : PERCENTILES) {
+            summary.append(',').append(micros(histogram.getValueAtPercentile(percentile)));
+        }
+        summary.append(',').append(micros(histogram.getMax()));
+        out.println(summary);
+    }
+
+    /**
+     * Merge the interval histograms of the given logs by series. The totals
+     * at the end of a log repeat its intervals, so they are only read from a
+     * log written without intervals.
+     *
+     * @param paths the logs to read, e.g. one of each load generator
+     * @return the merged histogram of each series, in the order the series were first found
+     * @throws IOException if a log cannot be read or holds a malformed line
+     */
+    public static Map<String, LatencyHistogram> merge(List<String> paths) throws IOException {
+        Map<String, LatencyHistogram> merged = new LinkedHashMap<String, LatencyHistogram>();
+        for (String path : paths) {
+            Map<String, LatencyHistogram> intervals = new LinkedHashMap<String, LatencyHistogram>();
+            Map<String, LatencyHistogram> logTotals = new LinkedHashMap<String, LatencyHistogram>();
+            BufferedReader in = new BufferedReader(new FileReader(path));
+            try {
+                Map<String, LatencyHistogram> into = intervals;
+                boolean header = true;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals(TOTALS)) {
+                        into = logTotals;
+                    } else if (line.startsWith("#") || line.length() == 0) {
+                        continue;
+                    } else if (header) { // the column names
+                        header = false;
+                    } else {
+                        readLine(path, line, into);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            for (Map.Entry<String, LatencyHistogram> entry : (intervals.isEmpty() ? logTotals : intervals).entrySet()) {
+                add(merged, entry.getKey(), entry.getValue());
+            }
+        }
+        return merged;
+    }
+
+    private static void readLine(String path, String line, Map<String, LatencyHistogram> into) throws IOException {
+        int nameStart = line.indexOf('"');
+        int nameEnd = line.lastIndexOf('"');
+        int histogramStart = line.indexOf(',', nameEnd) + 1;
+        if (nameStart < 0 || nameEnd <= nameStart || histogramStart == 0) {
+            throw new IOException("Malformed line in histogram log " + path + ": " + line);
+        }
+        add(into, line.substring(nameStart + 1, nameEnd), LatencyHistogram.decode(line.substring(histogramStart)));
+    }
+
+    private static void add(Map<String, LatencyHistogram> into, String name, LatencyHistogram histogram) {
+        LatencyHistogram total = into.get(name);
+        if (total == null) {
+            into.put(name, histogram);
+        } else {
+            total.add(histogram);
+        }
+    }
+
+    /**
+     * Print the merged percentiles of each series of the given logs.
+     *
+     * @param args the paths of the logs
+     * @throws IOException if a log cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: HistogramLog log...");
+            System.exit(1);
+        }
+        List<String> paths = new ArrayList<String>();
+        for (String arg : args) {
+            paths.add(arg);
+        }
+        for (Map.Entry<String, LatencyHistogram> entry : merge(paths).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            System.out.println(entry.getKey() + ": " + histogram.summary()
+                    + " p99.99=" + TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.99)) + " (us)");
+        }
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * Latencies recorded by one sampler thread since the log last collected them.
+     */
+    public static final class Recorder {
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        public synchronized void record(long nanos) {
+            histogram.record(nanos);
+        }
+
+        /**
+         * @param latencies latencies recorded elsewhere, e.g. over one sample
+         */
+        public synchronized void add(LatencyHistogram latencies) {
+            histogram.add(latencies);
+        }
+
+        synchronized void moveTo(LatencyHistogram into) {
+            into.add(histogram);
+            histogram.reset();
+        }
+    }
+}
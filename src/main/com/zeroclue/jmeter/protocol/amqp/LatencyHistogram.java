@@ -0,0 +1,207 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Fixed size, log-linear histogram of latencies in nanoseconds.
+ *
+ * Values are grouped into power of two ranges which are each split into 64
+ * linear sub-buckets, which keeps the relative error of a reported value below
+ * 1.6% across the whole range of a long. Recording never allocates, so it is
+ * safe to call for every message in a sampler's hot loop.
+ *
+ * Instances are not thread safe; callers recording from more than one thread
+ * must synchronize.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = 64 - SUB_BUCKET_BITS;
+
+    private static final byte ENCODING_VERSION = 1;
+
+    private final long[] counts = new long[(BUCKET_COUNT + 1) * SUB_BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * @param nanos the latency to record, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        long value = nanos < 0 ? 0 : nanos;
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all values recorded by another histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile the percentile to look up, between 0 and 100
+     * @return the highest value of the bucket holding the percentile, capped at the recorded maximum
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * Math.min(100.0, percentile) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(max, highestValueAt(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Encode the histogram for a log, from which {@link #decode(String)}
+     * restores it exactly, so histograms written by different threads, runs
+     * or load generators can be merged afterwards.
+     *
+     * @return the sum, minimum, maximum and non-zero bucket counts, base64 encoded
+     */
+    public String encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(ENCODING_VERSION);
+            out.writeLong(sum);
+            out.writeLong(getMin());
+            out.writeLong(max);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    out.writeShort(i);
+                    out.writeLong(counts[i]);
+                }
+            }
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by a byte array
+        }
+        // not encodeBase64String, which breaks the text into lines in older versions of the codec
+        return new String(Base64.encodeBase64(bytes.toByteArray()), Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * @param encoded a histogram encoded by {@link #encode()}
+     * @return the histogram
+     * @throws IOException if the text is not an encoded histogram
+     */
+    public static LatencyHistogram decode(String encoded) throws IOException {
+        byte[] bytes = Base64.decodeBase64(encoded.getBytes(Charset.forName("US-ASCII")));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length == 0 || in.readByte() != ENCODING_VERSION) {
+            throw new IOException("Not an encoded histogram: " + encoded);
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.sum = in.readLong();
+        long min = in.readLong();
+        histogram.max = in.readLong();
+        while (in.available() > 0) {
+            int index = in.readUnsignedShort();
+            if (index >= histogram.counts.length) {
+                throw new IOException("Bucket " + index + " out of range in encoded histogram");
+            }
+            long bucketCount = in.readLong();
+            histogram.counts[index] = bucketCount;
+            histogram.count += bucketCount;
+        }
+        if (histogram.count > 0) {
+            histogram.min = min;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return a one line summary of the distribution in microseconds
+     */
+    public String summary() {
+        return "n=" + count
+                + " min=" + micros(getMin())
+                + " avg=" + micros(getMean())
+                + " p50=" + micros(getValueAtPercentile(50))
+                + " p90=" + micros(getValueAtPercentile(90))
+                + " p99=" + micros(getValueAtPercentile(99))
+                + " p99.9=" + micros(getValueAtPercentile(99.9))
+                + " max=" + micros(getMax()) + " (us)";
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // keep the top SUB_BUCKET_BITS + 1 bits, so the mantissa falls in [64, 128)
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long mantissa = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
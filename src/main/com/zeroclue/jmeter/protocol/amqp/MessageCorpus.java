@@ -0,0 +1,201 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A file of captured message bodies, memory-mapped once and read by all
+ * publisher threads.
+ *
+ * The file is a sequence of records, each a 4 byte big endian length
+ * followed by that many bytes of body. Opening the corpus only maps it, so
+ * startup time does not depend on its size, and the bodies stay in the page
+ * cache rather than on the heap. Files beyond 2GB are mapped in segments; a
+ * record may span two of them.
+ *
+ * Without an index of the records, cursors move through the file record by
+ * record:
+ * <ul>
+ * <li>sequential: every thread replays the whole corpus from the start</li>
+ * <li>strided: thread k of n sends records k, k + n, k + 2n ...</li>
+ * <li>random: each send skips a random number of records, up to {@link #MAX_RANDOM_SKIP}</li>
+ * </ul>
+ * All cursors wrap around at the end of the file.
+ */
+public final class MessageCorpus {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String ORDER_SEQUENTIAL = "sequential";
+    public static final String ORDER_STRIDED = "strided";
+    public static final String ORDER_RANDOM = "random";
+    public static final String[] ORDERS = new String[]{ORDER_SEQUENTIAL, ORDER_STRIDED, ORDER_RANDOM};
+
+    public static final int MAX_RANDOM_SKIP = 64;
+
+    private static final int LENGTH_PREFIX = 4;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final Map<String, MessageCorpus> corpora = new HashMap<String, MessageCorpus>();
+
+    private final String path;
+    private final long length;
+    private final MappedByteBuffer[] segments;
+    private volatile boolean corruptionReported;
+
+    private MessageCorpus(String path) throws IOException {
+        this.path = path;
+        RandomAccessFile file = new RandomAccessFile(new File(path), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            length = channel.size();
+            if (length < LENGTH_PREFIX) {
+                throw new IOException("Message corpus " + path + " holds no records");
+            }
+            int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+            }
+            // cursors wrap around to the first record, so it must be valid
+            int first = segments[0].getInt(0);
+            if (first < 0 || LENGTH_PREFIX + (long) first > length) {
+                throw new IOException("Message corpus " + path + " starts with an invalid record");
+            }
+        } finally {
+            file.close(); // the mapping stays valid
+        }
+    }
+
+    /**
+     * Return the corpus in the given file, mapping it on first use.
+     *
+     * @param path the corpus file
+     * @return the corpus
+     * @throws IOException if the file cannot be mapped
+     */
+    public static synchronized MessageCorpus forFile(String path) throws IOException {
+        MessageCorpus corpus = corpora.get(path);
+        if (corpus == null) {
+            corpus = new MessageCorpus(path);
+            corpora.put(path, corpus);
+            log.info("Mapped message corpus " + path + ", " + corpus.length + " bytes");
+        }
+        return corpus;
+    }
+
+    /**
+     * Forget the corpora of the test; the mappings go away with the last cursor.
+     */
+    public static synchronized void closeAll() {
+        corpora.clear();
+    }
+
+    /**
+     * @param order one of {@link #ORDERS}
+     * @param thread the number of the thread, from 0
+     * @param threads the number of threads reading the corpus
+     * @return a cursor for one publisher thread
+     */
+    public Cursor cursor(String order, int thread, int threads) {
+        return new Cursor(order, thread, Math.max(1, threads));
+    }
+
+    /**
+     * Reads the records of the corpus for one thread, through its own views of the mapped segments.
+     */
+    public final class Cursor implements PayloadSource {
+        private final ByteBuffer[] views = new ByteBuffer[segments.length];
+        private final byte[] prefix = new byte[LENGTH_PREFIX];
+        private final String order;
+        private final int stride;
+        private long position;
+        private long seed;
+
+        Cursor(String order, int thread, int threads) {
+            for (int i = 0; i < segments.length; i++) {
+                views[i] = segments[i].duplicate();
+            }
+            this.order = order;
+            this.stride = ORDER_STRIDED.equals(order) ? threads : 1;
+            this.seed = 0x5eedL + thread * 0x9E3779B97F4A7C15L;
+            if (ORDER_STRIDED.equals(order)) {
+                skip(thread);
+            } else if (ORDER_RANDOM.equals(order)) {
+                skip(nextSkip());
+            }
+        }
+
+        @Override
+        public byte[] next() {
+            byte[] body = new byte[readLength()];
+            read(position + LENGTH_PREFIX, body);
+            position += LENGTH_PREFIX + body.length;
+            skip(ORDER_RANDOM.equals(order) ? nextSkip() : stride - 1);
+            return body;
+        }
+
+        private void skip(long records) {
+            for (long i = 0; i < records; i++) {
+                int size = readLength(); // may wrap around, so before reading the position
+                position += LENGTH_PREFIX + size;
+            }
+        }
+
+        /*
+         * Read the length of the record at the current position, moving back
+         * to the start of the file at its end or at a record that does not fit.
+         */
+        private int readLength() {
+            if (position + LENGTH_PREFIX > length) {
+                position = 0;
+            }
+            read(position, prefix);
+            int size = ((prefix[0] & 0xff) << 24) | ((prefix[1] & 0xff) << 16)
+                    | ((prefix[2] & 0xff) << 8) | (prefix[3] & 0xff);
+            if (size < 0 || position + LENGTH_PREFIX + size > length) {
+                if (!corruptionReported) {
+                    corruptionReported = true;
+                    log.warn("Message corpus " + path + " has a truncated or invalid record at offset "
+                            + position + ", wrapping around there");
+                }
+                position = 0;
+                read(position, prefix);
+                size = ((prefix[0] & 0xff) << 24) | ((prefix[1] & 0xff) << 16)
+                        | ((prefix[2] & 0xff) << 8) | (prefix[3] & 0xff);
+                // the first record was checked when the corpus was mapped
+            }
+            return size;
+        }
+
+        private void read(long offset, byte[] into) {
+            int done = 0;
+            while (done < into.length) {
+                int segment = (int) (offset / SEGMENT_SIZE);
+                ByteBuffer view = views[segment];
+                view.position((int) (offset - segment * SEGMENT_SIZE));
+                int chunk = Math.min(into.length - done, view.remaining());
+                view.get(into, done, chunk);
+                done += chunk;
+                offset += chunk;
+            }
+        }
+
+        private int nextSkip() {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            return (int) ((seed >>> 1) % (MAX_RANDOM_SKIP + 1));
+        }
+    }
+}
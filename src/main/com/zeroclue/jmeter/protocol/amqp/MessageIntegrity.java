@@ -0,0 +1,95 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Encodes and decodes the producer id, sequence number and body checksum a
+ * publisher stamps on each message, so that a consumer can tell lost,
+ * duplicated and corrupted messages apart.
+ *
+ * All three travel as long valued headers. The checksum is the CRC32C of
+ * the body as published, including a timestamp prefix and after compression.
+ */
+public final class MessageIntegrity {
+
+    public static final String HEADER_PRODUCER = "x-producer-id";
+    public static final String HEADER_SEQUENCE = "x-sequence";
+    public static final String HEADER_CHECKSUM = "x-crc32c";
+
+    private static final int POLYNOMIAL = 0x82F63B78; // Castagnoli, reflected
+
+    // slicing-by-8 tables, so the checksum takes eight bytes per step
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            for (int t = 1; t < 8; t++) {
+                int previous = TABLES[t - 1][n];
+                TABLES[t][n] = (previous >>> 8) ^ TABLES[0][previous & 0xff];
+            }
+        }
+    }
+
+    private MessageIntegrity() {
+    }
+
+    /**
+     * @param bytes the data
+     * @param offset where the data starts
+     * @param length the length of the data
+     * @return the CRC32C of the data
+     */
+    public static int crc32c(byte[] bytes, int offset, int length) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int crc = ~0;
+        while (length >= 8) {
+            crc ^= (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                    | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+            int high = (bytes[offset + 4] & 0xff) | (bytes[offset + 5] & 0xff) << 8
+                    | (bytes[offset + 6] & 0xff) << 16 | (bytes[offset + 7] & 0xff) << 24;
+            crc = t7[crc & 0xff] ^ t6[(crc >>> 8) & 0xff] ^ t5[(crc >>> 16) & 0xff] ^ t4[crc >>> 24]
+                    ^ t3[high & 0xff] ^ t2[(high >>> 8) & 0xff] ^ t1[(high >>> 16) & 0xff] ^ t0[high >>> 24];
+            offset += 8;
+            length -= 8;
+        }
+        while (length-- > 0) {
+            crc = (crc >>> 8) ^ t0[(crc ^ bytes[offset++]) & 0xff];
+        }
+        return ~crc;
+    }
+
+    /**
+     * Stamp a message about to be published.
+     *
+     * @param headers the headers the message is published with
+     * @param producer the id of the publishing thread
+     * @param sequence the number of the message among those of the producer
+     * @param body the body as it will be published
+     */
+    public static void stamp(Map<String, Object> headers, long producer, long sequence, byte[] body) {
+        headers.put(HEADER_PRODUCER, producer);
+        headers.put(HEADER_SEQUENCE, sequence);
+        headers.put(HEADER_CHECKSUM, crc32c(body, 0, body.length) & 0xffffffffL);
+    }
+
+    /**
+     * @param properties the properties of a delivery
+     * @param name the header
+     * @return the value of a numeric header, or null if the delivery carries none
+     */
+    static Number readHeader(AMQP.BasicProperties properties, String name) {
+        Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+        Object value = headers == null ? null : headers.get(name);
+        return value instanceof Number ? (Number) value : null;
+    }
+}
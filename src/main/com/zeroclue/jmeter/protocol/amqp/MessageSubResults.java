@@ -0,0 +1,93 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.SampleResult;
+
+/**
+ * Timings of individual messages within a sample, attached to it as sub-results.
+ *
+ * Either every message or a deterministic 1-in-N of the messages a sampler
+ * thread handles is kept. While a sample runs the timings are collected in
+ * primitive arrays that are reused from sample to sample; SampleResult objects
+ * are only built for the kept messages when the sample ends.
+ */
+public class MessageSubResults {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int every;
+    private long seen;
+
+    private int size;
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private long[] elapsed = new long[INITIAL_CAPACITY];
+    private int[] bytes = new int[INITIAL_CAPACITY];
+    private long[] tags = new long[INITIAL_CAPACITY];
+    private long[] sequence = new long[INITIAL_CAPACITY];
+
+    /**
+     * @param every keep one message in every, 1 to keep all
+     */
+    public MessageSubResults(int every) {
+        this.every = every;
+    }
+
+    /**
+     * Count the next message, deciding whether its timing is kept.
+     *
+     * @return true if the message should be passed to {@link #add}
+     */
+    public boolean next() {
+        return seen++ % every == 0;
+    }
+
+    /**
+     * @param startNanos System.nanoTime() when handling the message started
+     * @param elapsedNanos how long handling the message took
+     * @param size the body size
+     * @param deliveryTag the delivery tag or publish sequence number, -1 if none
+     */
+    public void add(long startNanos, long elapsedNanos, int size, long deliveryTag) {
+        if (this.size == starts.length) {
+            int capacity = this.size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            elapsed = Arrays.copyOf(elapsed, capacity);
+            bytes = Arrays.copyOf(bytes, capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            sequence = Arrays.copyOf(sequence, capacity);
+        }
+        starts[this.size] = startNanos;
+        elapsed[this.size] = elapsedNanos;
+        bytes[this.size] = size;
+        tags[this.size] = deliveryTag;
+        sequence[this.size] = seen - 1;
+        this.size++;
+    }
+
+    /**
+     * Attach the kept timings to a sample as sub-results and start collecting for the next one.
+     *
+     * @param parent the sample the messages belong to
+     * @param label the label of the sample
+     */
+    public void attachTo(SampleResult parent, String label) {
+        for (int i = 0; i < size; i++) {
+            long startMillis = TimeUnit.NANOSECONDS.toMillis(SendTimestamps.fromNanoTime(starts[i]));
+            SampleResult sub = new SampleResult(startMillis, TimeUnit.NANOSECONDS.toMillis(elapsed[i]));
+            sub.setSampleLabel(label + " #" + sequence[i]);
+            sub.setThreadName(parent.getThreadName());
+            sub.setBytes(bytes[i]);
+            sub.setResponseHeaders("elapsed-us: " + TimeUnit.NANOSECONDS.toMicros(elapsed[i]) + "\n");
+            if (tags[i] >= 0) {
+                sub.setResponseMessage("delivery tag " + tags[i]);
+            }
+            sub.setDataType(SampleResult.TEXT);
+            sub.setResponseCodeOK();
+            sub.setSuccessful(true);
+            parent.storeSubResult(sub);
+        }
+        size = 0;
+    }
+}
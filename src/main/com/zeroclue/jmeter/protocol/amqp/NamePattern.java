@@ -0,0 +1,111 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands a name pattern such as "queue-{0..9999}" into a numbered series of
+ * names.
+ *
+ * A pattern holds at most one range "{first..last}", which decides how many
+ * names there are; "{n}" stands for the number of the name wherever else it
+ * is needed, e.g. "key.{n}". A range whose first number has leading zeros,
+ * like "{0000..9999}", pads the numbers to that width. A pattern without a
+ * range stands for a single name, numbered 0.
+ */
+public final class NamePattern {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{(?:n|(\\d+)\\.\\.(\\d+))\\}");
+
+    private final String pattern;
+    private final String[] literals; // one more than there are placeholders
+    private final long first;
+    private final int size;
+    private final int width;
+
+    /**
+     * @param pattern the pattern
+     * @throws IllegalArgumentException if the pattern has more than one range, or an empty one
+     */
+    public NamePattern(String pattern) {
+        this.pattern = pattern;
+        List<String> parts = new ArrayList<String>();
+        Matcher matcher = PLACEHOLDER.matcher(pattern);
+        int end = 0;
+        long rangeFirst = 0;
+        long rangeLast = 0;
+        int rangeWidth = 0;
+        boolean ranged = false;
+        while (matcher.find()) {
+            parts.add(pattern.substring(end, matcher.start()));
+            end = matcher.end();
+            if (matcher.group(1) != null) {
+                if (ranged) {
+                    throw new IllegalArgumentException("More than one range in " + pattern);
+                }
+                ranged = true;
+                rangeFirst = Long.parseLong(matcher.group(1));
+                rangeLast = Long.parseLong(matcher.group(2));
+                rangeWidth = matcher.group(1).startsWith("0") ? matcher.group(1).length() : 0;
+            }
+        }
+        parts.add(pattern.substring(end));
+        if (rangeLast < rangeFirst || rangeLast - rangeFirst >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid range in " + pattern);
+        }
+        this.literals = parts.toArray(new String[parts.size()]);
+        this.first = rangeFirst;
+        this.size = (int) (rangeLast - rangeFirst + 1);
+        this.width = rangeWidth;
+    }
+
+    /**
+     * @return the number of names the pattern stands for
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index an index below {@link #size()}
+     * @return the number of the name at the index
+     */
+    public long numberAt(int index) {
+        return first + index;
+    }
+
+    /**
+     * @param index an index below {@link #size()}
+     * @return the name at the index
+     */
+    public String nameAt(int index) {
+        return format(numberAt(index));
+    }
+
+    /**
+     * @param number the number to put in place of every placeholder, such as the number of another pattern's name
+     * @return the name for the number
+     */
+    public String format(long number) {
+        if (literals.length == 1) {
+            return literals[0];
+        }
+        String digits = Long.toString(number);
+        StringBuilder name = new StringBuilder(pattern.length() + 8 * literals.length);
+        name.append(literals[0]);
+        for (int i = 1; i < literals.length; i++) {
+            for (int pad = digits.length(); pad < width; pad++) {
+                name.append('0');
+            }
+            name.append(digits).append(literals[i]);
+        }
+        return name.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,164 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses message bodies for publishing with a content encoding, and
+ * decompresses them on the consumer side.
+ *
+ * Compressing is paid once per distinct body: compressed bodies are cached
+ * by the identity of the body they were made from, which suits the message
+ * content and the pooled payloads, whose arrays are reused for every send.
+ * The cache holds its keys weakly, so the bodies of a finished test go with
+ * their pool.
+ */
+public final class PayloadCompression {
+
+    public static final String ENCODING_NONE = "none";
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+    public static final String[] ENCODINGS = new String[]{ENCODING_NONE, ENCODING_GZIP, ENCODING_DEFLATE};
+
+    private static final int BUFFER_SIZE = 8192;
+
+    // byte arrays hash by identity, so these are identity caches
+    private static final Map<String, Map<byte[], byte[]>> caches = new HashMap<String, Map<byte[], byte[]>>();
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * @param encoding one of {@link #ENCODINGS}, or a content encoding of a delivery
+     * @return whether bodies of this encoding are compressed
+     */
+    public static boolean isCompressed(String encoding) {
+        return ENCODING_GZIP.equals(encoding) || ENCODING_DEFLATE.equals(encoding);
+    }
+
+    /**
+     * Return the compressed body, compressing it on first use.
+     *
+     * @param body a body that is not modified while the test runs
+     * @param encoding gzip or deflate
+     * @return the compressed body, which must not be modified
+     */
+    public static byte[] compressed(byte[] body, String encoding) {
+        synchronized (caches) {
+            Map<byte[], byte[]> cache = caches.get(encoding);
+            if (cache == null) {
+                cache = new WeakHashMap<byte[], byte[]>();
+                caches.put(encoding, cache);
+            }
+            byte[] compressed = cache.get(body);
+            if (compressed == null) {
+                compressed = compress(body, encoding);
+                cache.put(body, compressed);
+            }
+            return compressed;
+        }
+    }
+
+    /**
+     * @param body the body to compress
+     * @param encoding gzip or deflate
+     * @return a new array with the compressed body
+     */
+    public static byte[] compress(byte[] body, String encoding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 2 + 64);
+        try {
+            OutputStream out = ENCODING_GZIP.equals(encoding)
+                    ? new GZIPOutputStream(bytes, BUFFER_SIZE)
+                    : new DeflaterOutputStream(bytes);
+            out.write(body);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by in-memory streams
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decompress a body, verifying its checksum.
+     *
+     * @param body the received body
+     * @param offset where the compressed data starts in the body
+     * @param encoding gzip or deflate
+     * @return the decompressed body
+     * @throws IOException if the body is not valid compressed data of the encoding
+     */
+    public static byte[] decompress(byte[] body, int offset, String encoding) throws IOException {
+        InputStream compressed = new ByteArrayInputStream(body, offset, body.length - offset);
+        InputStream in = ENCODING_GZIP.equals(encoding)
+                ? new GZIPInputStream(compressed, BUFFER_SIZE)
+                : new InflaterInputStream(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Hands out the compressed bodies of another source to one publisher
+     * thread, looking them up in a thread local cache before the shared one.
+     */
+    public static final class Source implements PayloadSource {
+        private final PayloadSource bodies;
+        private final String encoding;
+        private final Map<byte[], byte[]> local;
+        private long uncompressedBytes;
+
+        /**
+         * @param bodies the bodies to compress
+         * @param encoding gzip or deflate
+         * @param cache whether the source reuses its bodies, so they are worth caching
+         */
+        public Source(PayloadSource bodies, String encoding, boolean cache) {
+            this.bodies = bodies;
+            this.encoding = encoding;
+            this.local = cache ? new IdentityHashMap<byte[], byte[]>() : null;
+        }
+
+        @Override
+        public byte[] next() {
+            byte[] body = bodies.next();
+            uncompressedBytes += body.length;
+            if (local == null) {
+                return compress(body, encoding);
+            }
+            byte[] compressed = local.get(body);
+            if (compressed == null) {
+                compressed = compressed(body, encoding);
+                local.put(body, compressed);
+            }
+            return compressed;
+        }
+
+        /**
+         * @return the size of the bodies handed out before they were compressed, since the last call
+         */
+        public long drainUncompressedBytes() {
+            long bytes = uncompressedBytes;
+            uncompressedBytes = 0;
+            return bytes;
+        }
+    }
+}
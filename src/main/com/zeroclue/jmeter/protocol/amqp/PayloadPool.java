@@ -0,0 +1,272 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Message bodies generated once per test from a size distribution and
+ * shared, read-only, by all threads of a publisher.
+ *
+ * Distributions:
+ * <ul>
+ * <li>fixed: every body has the given size</li>
+ * <li>uniform: sizes spread evenly between the size and the max size</li>
+ * <li>lognormal: median the given size, shape sigma, capped at the max size, or at
+ * {@link #LOGNORMAL_DEFAULT_SPREAD} times the median without one</li>
+ * <li>histogram: a file of "size,weight" lines, sizes drawn in proportion to their weight</li>
+ * </ul>
+ *
+ * The pool never holds more than its byte budget: a body larger than the
+ * whole budget is cut to it, and once drawing another body would exceed it,
+ * the pool stops with the bodies it has. Bodies are filled
+ * with printable characters from a fixed seed, so runs are repeatable.
+ */
+public final class PayloadPool {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String DISTRIBUTION_FIXED = "fixed";
+    public static final String DISTRIBUTION_UNIFORM = "uniform";
+    public static final String DISTRIBUTION_LOGNORMAL = "lognormal";
+    public static final String DISTRIBUTION_HISTOGRAM = "histogram";
+    public static final String[] DISTRIBUTIONS = new String[]{
+            DISTRIBUTION_FIXED, DISTRIBUTION_UNIFORM, DISTRIBUTION_LOGNORMAL, DISTRIBUTION_HISTOGRAM};
+
+    public static final String ORDER_ROUND_ROBIN = "round-robin";
+    public static final String ORDER_RANDOM = "random";
+    public static final String[] ORDERS = new String[]{ORDER_ROUND_ROBIN, ORDER_RANDOM};
+
+    /** how far above its median a lognormal size may go without a max size */
+    public static final int LOGNORMAL_DEFAULT_SPREAD = 64;
+
+    private static final long SEED = 0x5eed;
+    private static final byte[] ALPHABET =
+            "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes();
+
+    private static final Map<String, PayloadPool> pools = new HashMap<String, PayloadPool>();
+
+    private final byte[][] bodies;
+    private final long totalBytes;
+
+    private PayloadPool(byte[][] bodies, long totalBytes) {
+        this.bodies = bodies;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Return the pool of a publisher, generating it on first use.
+     *
+     * @param name the publisher the pool belongs to
+     * @param distribution one of {@link #DISTRIBUTIONS}
+     * @param size the fixed size, the minimum of the uniform or the median of the lognormal distribution
+     * @param maxSize the maximum size
+     * @param sigma the shape of the lognormal distribution
+     * @param histogramFile the file of the histogram distribution
+     * @param count the number of bodies to generate
+     * @param maxBytes the most memory the bodies may take
+     * @return the pool
+     * @throws IOException if the histogram file cannot be read
+     */
+    public static synchronized PayloadPool forSampler(String name, String distribution, int size, int maxSize,
+                                                      double sigma, String histogramFile, int count,
+                                                      long maxBytes) throws IOException {
+        PayloadPool pool = pools.get(name);
+        if (pool == null) {
+            long start = System.currentTimeMillis();
+            pool = generate(new SizeDistribution(distribution, size, maxSize, sigma, histogramFile), count, maxBytes);
+            pools.put(name, pool);
+            log.info("Generated payload pool for " + name + ": " + pool
+                    + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return pool;
+    }
+
+    /**
+     * Release the pools of the test.
+     */
+    public static synchronized void closeAll() {
+        pools.clear();
+    }
+
+    private static PayloadPool generate(SizeDistribution sizes, int count, long maxBytes) {
+        Random random = new Random(SEED);
+        List<byte[]> bodies = new ArrayList<byte[]>(count);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            int size = (int) Math.min(sizes.next(random), maxBytes);
+            if (total + size > maxBytes && !bodies.isEmpty()) {
+                log.warn("Payload pool limited to " + bodies.size() + " of " + count
+                        + " bodies by its budget of " + maxBytes + " bytes");
+                break;
+            }
+            byte[] body = new byte[size];
+            for (int j = 0; j < size; j++) {
+                body[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            bodies.add(body);
+            total += size;
+        }
+        return new PayloadPool(bodies.toArray(new byte[bodies.size()][]), total);
+    }
+
+    /**
+     * @return the number of bodies in the pool
+     */
+    public int size() {
+        return bodies.length;
+    }
+
+    /**
+     * @param index an index below {@link #size()}
+     * @return the body, which must not be modified
+     */
+    public byte[] get(int index) {
+        return bodies[index];
+    }
+
+    /**
+     * @return the memory taken by the bodies
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public String toString() {
+        return bodies.length + " bodies, " + totalBytes + " bytes";
+    }
+
+    /**
+     * Hands out the bodies of a pool to one sampler thread without allocating.
+     */
+    public static final class Cursor implements PayloadSource {
+        private final PayloadPool pool;
+        private final boolean random;
+        private int next;
+        private long seed;
+
+        /**
+         * @param pool the pool to hand out
+         * @param order one of {@link #ORDERS}
+         * @param thread distinguishes the threads, so they don't all start with the same body
+         */
+        public Cursor(PayloadPool pool, String order, int thread) {
+            this.pool = pool;
+            this.random = ORDER_RANDOM.equals(order);
+            this.next = Math.abs(thread % pool.size());
+            this.seed = SEED + thread * 0x9E3779B97F4A7C15L;
+        }
+
+        @Override
+        public byte[] next() {
+            if (random) {
+                // xorshift, so picking a body allocates nothing and shares no state
+                seed ^= seed << 13;
+                seed ^= seed >>> 7;
+                seed ^= seed << 17;
+                return pool.bodies[(int) ((seed >>> 1) % pool.bodies.length)];
+            }
+            byte[] body = pool.bodies[next];
+            if (++next == pool.bodies.length) {
+                next = 0;
+            }
+            return body;
+        }
+    }
+
+    private static final class SizeDistribution {
+        private final String distribution;
+        private final int size;
+        private final int maxSize;
+        private final double sigma;
+        private int[] histogramSizes;
+        private double[] cumulativeWeights;
+
+        SizeDistribution(String distribution, int size, int maxSize, double sigma, String histogramFile)
+                throws IOException {
+            this.distribution = distribution;
+            this.size = Math.max(0, size);
+            if (maxSize > 0) {
+                this.maxSize = Math.max(this.size, maxSize);
+            } else {
+                this.maxSize = DISTRIBUTION_LOGNORMAL.equals(distribution)
+                        ? (int) Math.min(Integer.MAX_VALUE, (long) LOGNORMAL_DEFAULT_SPREAD * this.size) : this.size;
+            }
+            this.sigma = sigma;
+            if (DISTRIBUTION_HISTOGRAM.equals(distribution)) {
+                readHistogram(histogramFile);
+            }
+        }
+
+        int next(Random random) {
+            if (DISTRIBUTION_UNIFORM.equals(distribution)) {
+                return size + random.nextInt(maxSize - size + 1);
+            }
+            if (DISTRIBUTION_LOGNORMAL.equals(distribution)) {
+                double drawn = size * Math.exp(sigma * random.nextGaussian());
+                return (int) Math.min(maxSize, Math.round(drawn));
+            }
+            if (DISTRIBUTION_HISTOGRAM.equals(distribution)) {
+                double point = random.nextDouble() * cumulativeWeights[cumulativeWeights.length - 1];
+                for (int i = 0; i < cumulativeWeights.length; i++) {
+                    if (point < cumulativeWeights[i]) {
+                        return histogramSizes[i];
+                    }
+                }
+                return histogramSizes[histogramSizes.length - 1];
+            }
+            return size;
+        }
+
+        private void readHistogram(String file) throws IOException {
+            List<Integer> sizes = new ArrayList<Integer>();
+            List<Double> weights = new ArrayList<Double>();
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    String[] fields = line.split("[,;\\s]+");
+                    int size;
+                    double weight;
+                    try {
+                        size = Integer.parseInt(fields[0]);
+                        weight = fields.length > 1 ? Double.parseDouble(fields[1]) : 1.0;
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid line in payload size histogram " + file + ": " + line);
+                    }
+                    if (size < 0 || weight < 0) {
+                        throw new IOException("Negative size or weight in payload size histogram " + file + ": " + line);
+                    }
+                    sizes.add(size);
+                    weights.add(weight);
+                }
+            } finally {
+                reader.close();
+            }
+            if (sizes.isEmpty()) {
+                throw new IOException("Payload size histogram " + file + " is empty");
+            }
+            histogramSizes = new int[sizes.size()];
+            cumulativeWeights = new double[sizes.size()];
+            double cumulative = 0;
+            for (int i = 0; i < histogramSizes.length; i++) {
+                histogramSizes[i] = sizes.get(i);
+                cumulative += weights.get(i);
+                cumulativeWeights[i] = cumulative;
+            }
+        }
+    }
+}
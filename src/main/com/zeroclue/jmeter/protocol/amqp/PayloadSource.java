@@ -0,0 +1,12 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * Hands message bodies to one publisher thread.
+ */
+public interface PayloadSource {
+
+    /**
+     * @return the next body to publish, which must not be modified
+     */
+    byte[] next();
+}
@@ -0,0 +1,158 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+/**
+ * Tracks the messages a publisher has sent on a channel in confirm mode and
+ * the broker acknowledgements received for them.
+ *
+ * Outstanding publishes are kept in a ring of primitive longs indexed by the
+ * publish sequence number, holding the time each message was sent. Publishing
+ * waits rather than wrap onto a slot that is still in use, so no boxing or
+ * per-message allocation takes place on either the publishing or the
+ * confirming side.
+ *
+ * The publishing thread blocks in {@link #beforePublish(long)} while the cap
+ * is reached; acks and nacks are delivered on the connection thread.
+ */
+public class PublisherConfirms implements ConfirmListener {
+
+    private static final long FREE = 0L;
+
+    private final Channel channel;
+    private final int maxOutstanding;
+    private final long[] sentAt;
+    private final int mask;
+    private final long waitMillis;
+
+    private long lowest = -1;  // lowest outstanding sequence number
+    private long highest = -1; // highest sequence number published
+    private int outstanding;
+
+    private long acked;
+    private long nacked;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * @param channel the channel in confirm mode
+     * @param maxOutstanding the maximum number of unconfirmed messages
+     * @param waitMillis how long to wait for a free slot before checking the channel is still open
+     */
+    public PublisherConfirms(Channel channel, int maxOutstanding, long waitMillis) {
+        this.channel = channel;
+        this.maxOutstanding = maxOutstanding;
+        int capacity = Integer.highestOneBit(Math.max(1, maxOutstanding - 1)) << 1;
+        this.sentAt = new long[capacity];
+        this.mask = capacity - 1;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * @param channel a channel
+     * @return whether this tracker belongs to the given channel
+     */
+    public boolean isFor(Channel channel) {
+        return this.channel == channel;
+    }
+
+    /**
+     * Register a message about to be published, waiting until fewer than
+     * maxOutstanding messages are unconfirmed.
+     *
+     * @param seqNo the channel's next publish sequence number
+     * @throws InterruptedException if interrupted while waiting for a confirm
+     * @throws IOException if the channel closed while waiting for a confirm
+     */
+    public void beforePublish(long seqNo) throws InterruptedException, IOException {
+        beforePublish(seqNo, -1);
+    }
+
+    /**
+     * Register a message about to be published, measuring its confirm latency
+     * from the given time rather than from when it is actually sent.
+     *
+     * @param seqNo the channel's next publish sequence number
+     * @param sentAt the System.nanoTime() the message was meant to be sent at, -1 for now
+     * @throws InterruptedException if interrupted while waiting for a confirm
+     * @throws IOException if the channel closed while waiting for a confirm
+     */
+    public synchronized void beforePublish(long seqNo, long sentAt) throws InterruptedException, IOException {
+        // an old unconfirmed message also blocks the slot its successors would wrap onto
+        while (outstanding >= maxOutstanding || (outstanding > 0 && seqNo - lowest > mask)) {
+            wait(waitMillis);
+            if (!channel.isOpen()) {
+                throw new IOException("Channel closed with " + outstanding + " unconfirmed messages");
+            }
+        }
+        long now = sentAt == -1 ? System.nanoTime() : sentAt;
+        this.sentAt[(int) seqNo & mask] = now == FREE ? 1 : now;
+        if (lowest < 0 || outstanding == 0) {
+            lowest = seqNo;
+        }
+        highest = seqNo;
+        outstanding++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void handleAck(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void handleNack(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, false);
+    }
+
+    private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+        long now = System.nanoTime();
+        long from = multiple ? lowest : deliveryTag;
+        for (long seq = from; seq >= 0 && seq <= deliveryTag && seq <= highest; seq++) {
+            int slot = (int) seq & mask;
+            long sent = sentAt[slot];
+            if (sent == FREE) {
+                continue;
+            }
+            sentAt[slot] = FREE;
+            outstanding--;
+            if (ack) {
+                acked++;
+                latency.record(now - sent);
+            } else {
+                nacked++;
+            }
+        }
+        while (outstanding > 0 && sentAt[(int) lowest & mask] == FREE) {
+            lowest++;
+        }
+        notifyAll();
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Copy the counters and the latencies recorded since the last call into
+     * the given histogram and start a new interval.
+     *
+     * @param into histogram receiving the confirm latencies of the interval
+     * @return the acked and nacked counts of the interval
+     */
+    public synchronized long[] drain(LatencyHistogram into) {
+        long[] counts = new long[]{acked, nacked};
+        into.add(latency);
+        latency.reset();
+        acked = 0;
+        nacked = 0;
+        return counts;
+    }
+}
@@ -0,0 +1,271 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumes from a whole set of queues over a few channels, the queues dealt
+ * out to the channels in turn, counting the deliveries and end-to-end
+ * latency of each queue.
+ *
+ * Deliveries are handled on the connection's consumer threads, one channel
+ * at a time each, so a channel's queues are only ever counted by one thread.
+ * The counts are kept in arrays indexed by queue, guarded by a lock per
+ * channel that only the sampler thread contends for when it drains them.
+ */
+public class QueueSetConsumer {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final String[] queues;
+    private final Channel[] channels;
+    private final Object[] locks; // one per channel
+    private final LatencyHistogram[] latency; // one per channel
+    private final String[] consumerTags;
+    private final boolean autoAck;
+    private final String timestamp;
+    private final long clockOffsetNanos;
+
+    // per queue, since the last drain
+    private final long[] deliveries;
+    private final long[] timed;
+    private final long[] latencySum;
+    private final long[] latencyMax;
+
+    private final AtomicLong processed = new AtomicLong();
+    private volatile long waitTarget = Long.MAX_VALUE;
+    private volatile Thread waiter;
+    private volatile RuntimeException failure;
+
+    /**
+     * @param queues the queues to consume from
+     * @param channels the channels to spread the queues over, each one of its own
+     * @param timestamp where publishers stamped the send timestamp, one of {@link SendTimestamps#MODES}
+     * @param clockOffsetNanos how far this generator's clock runs ahead of the publishers'
+     * @param autoAck whether the broker considers deliveries acknowledged on sending
+     */
+    public QueueSetConsumer(String[] queues, Channel[] channels, String timestamp, long clockOffsetNanos,
+                            boolean autoAck) {
+        this.queues = queues;
+        this.channels = channels;
+        this.timestamp = timestamp;
+        this.clockOffsetNanos = clockOffsetNanos;
+        this.autoAck = autoAck;
+        this.locks = new Object[channels.length];
+        this.latency = new LatencyHistogram[channels.length];
+        for (int i = 0; i < channels.length; i++) {
+            locks[i] = new Object();
+            latency[i] = new LatencyHistogram();
+        }
+        this.consumerTags = new String[queues.length];
+        this.deliveries = new long[queues.length];
+        this.timed = new long[queues.length];
+        this.latencySum = new long[queues.length];
+        this.latencyMax = new long[queues.length];
+    }
+
+    /**
+     * Start a consumer for every queue.
+     *
+     * @throws IOException if a consumer could not be started
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < queues.length; i++) {
+            Channel channel = channels[i % channels.length];
+            consumerTags[i] = channel.basicConsume(queues[i], autoAck, new QueueConsumer(channel, i));
+        }
+    }
+
+    /**
+     * @return the queues consumed from
+     */
+    public String[] getQueues() {
+        return queues;
+    }
+
+    /**
+     * @return the number of deliveries processed so far
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * Wait until the given number of deliveries were processed in total.
+     *
+     * @param target the total to wait for
+     * @param timeoutMillis the maximum time to wait
+     * @return true if reached, false on timeout
+     * @throws InterruptedException if the sampler thread is interrupted
+     * @throws ShutdownSignalException if a channel or the connection shut down
+     * @throws ConsumerCancelledException if the broker cancelled a consumer
+     */
+    public boolean awaitProcessed(long target, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiter = Thread.currentThread();
+        waitTarget = target;
+        try {
+            while (processed.get() < target) {
+                if (failure != null) {
+                    throw failure;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            return true;
+        } finally {
+            waitTarget = Long.MAX_VALUE;
+            waiter = null;
+        }
+    }
+
+    /**
+     * Move the counts since the last call into the given arrays, indexed like
+     * {@link #getQueues()}, and the end-to-end latencies into the histogram.
+     *
+     * @param counts receives the deliveries of each queue
+     * @param latencyCounts receives the number of timed deliveries of each queue
+     * @param latencySums receives the sum of their latencies in nanoseconds
+     * @param latencyMaxes receives the highest of their latencies in nanoseconds
+     * @param into receives the latencies of all queues
+     */
+    public void drain(long[] counts, long[] latencyCounts, long[] latencySums, long[] latencyMaxes,
+                      LatencyHistogram into) {
+        for (int lane = 0; lane < channels.length; lane++) {
+            synchronized (locks[lane]) {
+                for (int i = lane; i < queues.length; i += channels.length) {
+                    counts[i] = deliveries[i];
+                    latencyCounts[i] = timed[i];
+                    latencySums[i] = latencySum[i];
+                    latencyMaxes[i] = latencyMax[i];
+                    deliveries[i] = 0;
+                    timed[i] = 0;
+                    latencySum[i] = 0;
+                    latencyMax[i] = 0;
+                }
+                into.add(latency[lane]);
+                latency[lane].reset();
+            }
+        }
+    }
+
+    /**
+     * Cancel the consumers and close their channels.
+     * Deliveries not yet acknowledged are redelivered by the broker.
+     */
+    public void close() {
+        for (int i = 0; i < queues.length; i++) {
+            Channel channel = channels[i % channels.length];
+            try {
+                if (consumerTags[i] != null && channel.isOpen()) {
+                    channel.basicCancel(consumerTags[i]);
+                }
+            } catch (IOException e) {
+                log.debug("Couldn't safely cancel consumer of " + queues[i], e);
+            } catch (ShutdownSignalException e) {
+                log.debug("Channel already closed", e);
+            }
+        }
+        for (Channel channel : channels) {
+            try {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't safely close channel " + channel.getChannelNumber(), e);
+            } catch (ShutdownSignalException e) {
+                log.debug("Channel already closed", e);
+            }
+        }
+        Arrays.fill(consumerTags, null);
+    }
+
+    private void fail(RuntimeException e) {
+        failure = e;
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private final class QueueConsumer extends DefaultConsumer {
+        private final int queue;
+        private final int lane;
+
+        QueueConsumer(Channel channel, int queue) {
+            super(channel);
+            this.queue = queue;
+            this.lane = queue % channels.length;
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body)
+                throws IOException {
+            long nanos = -1;
+            if (!SendTimestamps.MODE_NONE.equals(timestamp)) {
+                long sent = SendTimestamps.read(timestamp, properties, body);
+                if (sent >= 0) {
+                    nanos = SendTimestamps.now() - clockOffsetNanos - sent;
+                }
+            }
+            if (!autoAck) {
+                try {
+                    getChannel().basicAck(envelope.getDeliveryTag(), false);
+                } catch (IOException e) {
+                    log.warn("Failed to acknowledge a delivery from " + queues[queue], e);
+                    fail(new IllegalStateException("Failed to acknowledge a delivery: " + e));
+                    return;
+                }
+            }
+            synchronized (locks[lane]) {
+                deliveries[queue]++;
+                if (nanos >= 0) {
+                    timed[queue]++;
+                    latencySum[queue] += nanos;
+                    if (nanos > latencyMax[queue]) {
+                        latencyMax[queue] = nanos;
+                    }
+                    latency[lane].record(nanos);
+                }
+            }
+            if (processed.incrementAndGet() >= waitTarget) {
+                Thread thread = waiter;
+                if (thread != null) {
+                    LockSupport.unpark(thread);
+                }
+            }
+        }
+
+        @Override
+        public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+            if (!sig.isInitiatedByApplication()) {
+                fail(sig);
+            }
+        }
+
+        @Override
+        public void handleCancel(String consumerTag) {
+            log.warn("Consumer of " + queues[queue] + " cancelled by the broker");
+            fail(new ConsumerCancelledException());
+        }
+    }
+}
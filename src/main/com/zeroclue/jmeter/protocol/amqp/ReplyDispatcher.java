@@ -0,0 +1,317 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumes the replies to the requests sent on a channel and hands each one
+ * to the request it answers.
+ *
+ * Every request gets a sequence number and the correlation id
+ * "prefix:sequence", where the prefix is unique to the dispatcher. Requests in
+ * flight are kept in a ring indexed by the sequence number, so a reply finds
+ * its request without a map lookup or per-request allocation. Replies whose
+ * correlation id is not in flight, because the request timed out or the reply
+ * was not meant for this dispatcher, are counted as orphaned.
+ *
+ * In pipelined mode a reply completes its request right away, recording
+ * the round trip, so the sampler thread only has to keep the pipeline full
+ * and expire requests whose reply is overdue.
+ *
+ * With RabbitMQ's direct reply-to the consumer must run on the channel the
+ * requests are published on, so one dispatcher serves one channel.
+ */
+public class ReplyDispatcher extends DefaultConsumer {
+
+    /** the pseudo queue of RabbitMQ's direct reply-to */
+    public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private static final AtomicInteger dispatchers = new AtomicInteger();
+
+    private final String prefix = Integer.toString(dispatchers.incrementAndGet(), 36) + ":";
+    private final int mask;
+    private final long[] inFlight; // the sequence number occupying each slot, -1 if free
+    private final long[] sentAt;
+    private final long[] repliedAt;
+    private final byte[][] bodies;
+    private final boolean pipelined;
+    private final LatencyHistogram roundTrips = new LatencyHistogram();
+
+    private long nextSequence;
+    private int outstanding;
+    private long orphaned;
+    private long timeouts;
+    private long finished; // answered or timed out, pipelined mode only
+    private byte[] lastBody;
+    private String replyTo;
+    private volatile ShutdownSignalException shutdown;
+
+    /**
+     * @param channel the channel requests are published on
+     * @param capacity the maximum number of requests in flight, rounded up to a power of two
+     * @param pipelined whether replies complete their requests themselves
+     */
+    public ReplyDispatcher(Channel channel, int capacity, boolean pipelined) {
+        super(channel);
+        this.pipelined = pipelined;
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.inFlight = new long[size];
+        this.sentAt = new long[size];
+        this.repliedAt = new long[size];
+        this.bodies = new byte[size][];
+        Arrays.fill(inFlight, -1);
+    }
+
+    /**
+     * Start consuming replies.
+     *
+     * A named reply queue gets the dispatcher's prefix appended and is
+     * declared exclusive to it: were dispatchers to share one queue, the
+     * broker would hand its replies round robin to their consumers, and most
+     * would reach a dispatcher that did not send the request.
+     *
+     * @param queue the reply queue name, {@link #DIRECT_REPLY_TO}, or empty for a server named exclusive queue
+     * @return the address requests must carry as reply-to
+     * @throws IOException if the reply consumer could not be started
+     */
+    public String start(String queue) throws IOException {
+        if (queue == null || queue.isEmpty()) {
+            queue = getChannel().queueDeclare().getQueue();
+        } else if (!DIRECT_REPLY_TO.equals(queue)) {
+            queue = queue + "." + prefix.substring(0, prefix.length() - 1);
+            getChannel().queueDeclare(queue, false, true, true, null);
+        }
+        getChannel().basicConsume(queue, true, this);
+        replyTo = queue;
+        return replyTo;
+    }
+
+    /**
+     * @return the address requests must carry as reply-to
+     */
+    public String getReplyTo() {
+        return replyTo;
+    }
+
+    /**
+     * @param channel a channel
+     * @return whether this dispatcher consumes the replies of the given channel
+     */
+    public boolean isFor(Channel channel) {
+        return getChannel() == channel;
+    }
+
+    /**
+     * Register a request about to be sent.
+     *
+     * @return the sequence number of the request, or -1 if the maximum number of requests is in flight
+     */
+    public synchronized long register() {
+        long sequence = nextSequence;
+        int slot = (int) sequence & mask;
+        if (inFlight[slot] != -1) {
+            return -1;
+        }
+        nextSequence++;
+        inFlight[slot] = sequence;
+        sentAt[slot] = System.nanoTime();
+        bodies[slot] = null;
+        repliedAt[slot] = 0;
+        outstanding++;
+        return sequence;
+    }
+
+    /**
+     * @param sequence the sequence number of a request
+     * @return the correlation id the request must carry
+     */
+    public String correlationId(long sequence) {
+        return prefix + sequence;
+    }
+
+    /**
+     * Wait for the reply to a request.
+     *
+     * @param sequence the sequence number of the request
+     * @param timeoutMillis the maximum time to wait
+     * @return true if the reply arrived, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ShutdownSignalException if the channel shut down
+     */
+    public synchronized boolean await(long sequence, long timeoutMillis) throws InterruptedException {
+        int slot = (int) sequence & mask;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (repliedAt[slot] == 0) {
+            if (shutdown != null) {
+                throw shutdown;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * @param sequence the sequence number of an answered request
+     * @return the round trip time of the request in nanoseconds
+     */
+    public synchronized long getRoundTrip(long sequence) {
+        int slot = (int) sequence & mask;
+        return repliedAt[slot] - sentAt[slot];
+    }
+
+    /**
+     * @param sequence the sequence number of an answered request
+     * @return the body of its reply
+     */
+    public synchronized byte[] getBody(long sequence) {
+        return bodies[(int) sequence & mask];
+    }
+
+    /**
+     * Take a request out of flight, whether it was answered or not; a reply
+     * arriving for it later counts as orphaned.
+     *
+     * @param sequence the sequence number of the request
+     * @param timedOut whether the request is given up on
+     */
+    public synchronized void complete(long sequence, boolean timedOut) {
+        int slot = (int) sequence & mask;
+        if (inFlight[slot] == sequence) {
+            inFlight[slot] = -1;
+            bodies[slot] = null;
+            outstanding--;
+            if (timedOut) {
+                timeouts++;
+                if (pipelined) {
+                    finished++;
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        long sequence = parseSequence(properties.getCorrelationId());
+        long now = System.nanoTime();
+        synchronized (this) {
+            int slot = (int) sequence & mask;
+            if (sequence < 0 || inFlight[slot] != sequence || repliedAt[slot] != 0) {
+                orphaned++;
+                return;
+            }
+            if (pipelined) {
+                roundTrips.record(now - sentAt[slot]);
+                inFlight[slot] = -1;
+                outstanding--;
+                finished++;
+                lastBody = body;
+            } else {
+                repliedAt[slot] = now == 0 ? 1 : now;
+                bodies[slot] = body;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        shutdown = sig;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return the requests answered or timed out so far, in pipelined mode
+     */
+    public synchronized long getFinished() {
+        return finished;
+    }
+
+    /**
+     * Wait until more requests than the given number finished, in pipelined mode.
+     *
+     * @param seen the number of finished requests already seen
+     * @param maxWaitNanos the maximum time to wait
+     * @return the number of finished requests
+     * @throws InterruptedException if interrupted while waiting
+     * @throws ShutdownSignalException if the channel shut down
+     */
+    public synchronized long awaitFinished(long seen, long maxWaitNanos) throws InterruptedException {
+        if (finished <= seen) {
+            if (shutdown != null) {
+                throw shutdown;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, maxWaitNanos);
+        }
+        return finished;
+    }
+
+    /**
+     * @return the body of the last reply received, in pipelined mode
+     */
+    public synchronized byte[] getLastBody() {
+        return lastBody;
+    }
+
+    /**
+     * Move the round trips recorded since the last call into the given histogram, in pipelined mode.
+     */
+    public synchronized void drainRoundTrips(LatencyHistogram into) {
+        into.add(roundTrips);
+        roundTrips.reset();
+    }
+
+    /**
+     * @return the requests timed out so far
+     */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return the replies received so far that matched no request in flight
+     */
+    public synchronized long getOrphaned() {
+        return orphaned;
+    }
+
+    private long parseSequence(String correlationId) {
+        if (correlationId == null || !correlationId.startsWith(prefix)) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = prefix.length(); i < correlationId.length(); i++) {
+            char c = correlationId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return correlationId.length() > prefix.length() ? sequence : -1;
+    }
+}
@@ -0,0 +1,254 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Push based consumer handing deliveries from the connection thread to a
+ * single sampler thread through a bounded single-producer/single-consumer
+ * ring buffer.
+ *
+ * Unlike QueueingConsumer there is no lock and no wrapper object per message:
+ * handleDelivery stores the envelope, properties and body in preallocated
+ * slots and publishes them by advancing the tail sequence. How the sampler
+ * thread waits for the next delivery is chosen with a {@link WaitStrategy},
+ * trading CPU for handoff latency.
+ *
+ * The connection thread waits for space when the ring is full, which holds
+ * up every other channel of the connection, so the channel's prefetch count
+ * must not exceed the ring's capacity. With automatic acknowledgement the
+ * broker ignores the prefetch count, and deliveries arriving after the
+ * consumer was closed are lost; these are counted.
+ *
+ * Usage from the sampler thread:
+ * <pre>
+ *     if (consumer.await(timeout)) {
+ *         byte[] body = consumer.getBody();
+ *         ...
+ *         consumer.release();
+ *     }
+ * </pre>
+ */
+public class RingBufferConsumer extends DefaultConsumer {
+
+    public enum WaitStrategy {
+        /** park until the connection thread signals a delivery */
+        BLOCK,
+        /** poll, parking briefly between attempts */
+        PARK,
+        /** busy spin, lowest latency at the cost of a core per consumer */
+        SPIN
+    }
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final long PARK_NANOS = 1000;
+    private static final int SPINS_BETWEEN_CLOCK_CHECKS = 256;
+
+    private final WaitStrategy waitStrategy;
+    private final boolean autoAck;
+    private final int mask;
+    private final Envelope[] envelopes;
+    private final AMQP.BasicProperties[] properties;
+    private final byte[][] bodies;
+
+    private final AtomicLong head = new AtomicLong(); // next slot to read, written by the sampler thread
+    private final AtomicLong tail = new AtomicLong(); // next slot to write, written by the connection thread
+
+    private volatile Thread waiter;
+    private volatile ShutdownSignalException shutdown;
+    private volatile boolean cancelled;
+    private volatile boolean closed;
+    private volatile long lost; // written by the connection thread only
+
+    /**
+     * @param channel the channel to consume on
+     * @param capacity the number of deliveries buffered, rounded up to a power of two
+     * @param waitStrategy how the sampler thread waits for deliveries
+     * @param autoAck whether the broker considers deliveries acknowledged on sending
+     */
+    public RingBufferConsumer(Channel channel, int capacity, WaitStrategy waitStrategy, boolean autoAck) {
+        super(channel);
+        int size = capacityFor(capacity);
+        this.mask = size - 1;
+        this.envelopes = new Envelope[size];
+        this.properties = new AMQP.BasicProperties[size];
+        this.bodies = new byte[size][];
+        this.waitStrategy = waitStrategy;
+        this.autoAck = autoAck;
+    }
+
+    /**
+     * @param capacity the requested number of deliveries to buffer
+     * @return the number of deliveries the ring holds, which the prefetch count must not exceed
+     */
+    public static int capacityFor(int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    }
+
+    /**
+     * @return the auto-acknowledged deliveries dropped because the consumer was closed
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties props, byte[] body) {
+        long sequence = tail.get();
+        // the prefetch count should keep us from ever filling up, but back off if it does
+        while (sequence - head.get() > mask) {
+            if (closed || shutdown != null) {
+                if (autoAck) {
+                    // the broker considers it delivered already
+                    if (lost++ == 0) {
+                        log.warn("Auto-acknowledged deliveries lost, the consumer was closed with its ring buffer full");
+                    }
+                }
+                return; // unacked, so the broker redelivers it
+            }
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        int slot = (int) sequence & mask;
+        envelopes[slot] = envelope;
+        properties[slot] = props;
+        bodies[slot] = body;
+        tail.set(sequence + 1); // a full fence, so a parked sampler thread is seen below
+        signal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        shutdown = sig;
+        signal();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleCancel(String consumerTag) {
+        cancelled = true;
+        signal();
+    }
+
+    /**
+     * Wait for the next delivery. Deliveries already buffered are handed out
+     * before a shutdown or cancellation is reported.
+     *
+     * @param timeoutMillis the maximum time to wait
+     * @return true if a delivery is available, false on timeout
+     * @throws InterruptedException if the sampler thread is interrupted
+     * @throws ShutdownSignalException if the channel or connection shut down
+     * @throws ConsumerCancelledException if the broker cancelled the consumer
+     */
+    public boolean await(long timeoutMillis) throws InterruptedException {
+        long current = head.get();
+        if (tail.get() > current) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int spins = 0;
+        while (tail.get() <= current) {
+            checkAlive();
+            switch (waitStrategy) {
+                case SPIN:
+                    if (++spins < SPINS_BETWEEN_CLOCK_CHECKS) {
+                        continue;
+                    }
+                    spins = 0;
+                    break;
+                case PARK:
+                    LockSupport.parkNanos(PARK_NANOS);
+                    break;
+                default:
+                    waiter = Thread.currentThread();
+                    if (tail.get() <= current && shutdown == null && !cancelled) {
+                        LockSupport.parkNanos(this, deadline - System.nanoTime());
+                    }
+                    waiter = null;
+                    break;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return tail.get() > current;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the envelope of the current delivery
+     */
+    public Envelope getEnvelope() {
+        return envelopes[(int) head.get() & mask];
+    }
+
+    /**
+     * @return the properties of the current delivery
+     */
+    public AMQP.BasicProperties getProperties() {
+        return properties[(int) head.get() & mask];
+    }
+
+    /**
+     * @return the body of the current delivery
+     */
+    public byte[] getBody() {
+        return bodies[(int) head.get() & mask];
+    }
+
+    /**
+     * Hand the slot of the current delivery back to the connection thread.
+     */
+    public void release() {
+        long current = head.get();
+        int slot = (int) current & mask;
+        envelopes[slot] = null;
+        properties[slot] = null;
+        bodies[slot] = null;
+        head.lazySet(current + 1);
+    }
+
+    /**
+     * Stop accepting deliveries, releasing a connection thread waiting for space.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private void checkAlive() {
+        if (shutdown != null) {
+            throw shutdown;
+        }
+        if (cancelled) {
+            throw new ConsumerCancelledException();
+        }
+    }
+
+    private void signal() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Picks a routing key per message from a key space, so that publishing
+ * exercises the exchange's routing and the skew between queues the way
+ * real traffic does.
+ *
+ * Distributions:
+ * <ul>
+ * <li>uniform: every key equally likely</li>
+ * <li>round-robin: the keys in turn</li>
+ * <li>zipf: the n-th key with a weight of 1/n^exponent, so the first keys are the hottest</li>
+ * <li>weighted: a list of "key=weight" entries, a key without a weight weighs 1</li>
+ * </ul>
+ * The key space of the first three is a {@link NamePattern} such as
+ * "key.{0..999}". The keys are built once per test and shared by all threads
+ * of a publisher; weighted picks use alias tables, so picking a key takes
+ * constant time and allocates nothing.
+ */
+public final class RoutingKeys {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String DISTRIBUTION_STATIC = "static";
+    public static final String DISTRIBUTION_UNIFORM = "uniform";
+    public static final String DISTRIBUTION_ROUND_ROBIN = "round-robin";
+    public static final String DISTRIBUTION_ZIPF = "zipf";
+    public static final String DISTRIBUTION_WEIGHTED = "weighted";
+    public static final String[] DISTRIBUTIONS = new String[]{DISTRIBUTION_STATIC, DISTRIBUTION_UNIFORM,
+            DISTRIBUTION_ROUND_ROBIN, DISTRIBUTION_ZIPF, DISTRIBUTION_WEIGHTED};
+
+    private static final int TOP_KEYS = 10;
+
+    private static final Map<String, RoutingKeys> generators = new HashMap<String, RoutingKeys>();
+
+    private final String name;
+    private final String distribution;
+    private final String[] keys;
+    private final double[] probability; // alias tables, null if all keys are equally likely
+    private final int[] alias;
+    private final long[] totals;
+
+    private RoutingKeys(String name, String distribution, String[] keys, double[] weights) {
+        this.name = name;
+        this.distribution = distribution;
+        this.keys = keys;
+        this.totals = new long[keys.length];
+        if (weights == null) {
+            this.probability = null;
+            this.alias = null;
+        } else {
+            this.probability = new double[keys.length];
+            this.alias = new int[keys.length];
+            buildAliasTables(weights);
+        }
+    }
+
+    /**
+     * Return the generator of a publisher, building its keys on first use.
+     *
+     * @param name the publisher the generator belongs to
+     * @param distribution one of {@link #DISTRIBUTIONS} but static
+     * @param space the key pattern, or the weighted list
+     * @param exponent the exponent of the zipf distribution
+     * @return the generator
+     * @throws IllegalArgumentException if the key space is empty or invalid
+     */
+    public static synchronized RoutingKeys forSampler(String name, String distribution, String space, double exponent) {
+        RoutingKeys generator = generators.get(name);
+        if (generator == null) {
+            generator = create(name, distribution, space, exponent);
+            generators.put(name, generator);
+            log.info("Routing keys for " + name + ": " + distribution + " over " + generator.keys.length + " keys");
+        }
+        return generator;
+    }
+
+    /**
+     * Log how often the keys of each publisher were used, and forget the generators.
+     */
+    public static synchronized void closeAll() {
+        for (RoutingKeys generator : generators.values()) {
+            generator.logTotals();
+        }
+        generators.clear();
+    }
+
+    private static RoutingKeys create(String name, String distribution, String space, double exponent) {
+        if (space == null || space.trim().isEmpty()) {
+            throw new IllegalArgumentException("No routing key space for the " + distribution + " distribution");
+        }
+        if (DISTRIBUTION_WEIGHTED.equals(distribution)) {
+            List<String> keys = new ArrayList<String>();
+            List<Double> weights = new ArrayList<Double>();
+            for (String entry : space.split(",")) {
+                entry = entry.trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                int separator = entry.lastIndexOf('=');
+                keys.add((separator < 0 ? entry : entry.substring(0, separator).trim()).intern());
+                try {
+                    weights.add(separator < 0 ? 1.0 : Double.parseDouble(entry.substring(separator + 1).trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid weight in routing key entry " + entry);
+                }
+            }
+            double[] weightArray = new double[weights.size()];
+            for (int i = 0; i < weightArray.length; i++) {
+                weightArray[i] = weights.get(i);
+            }
+            return new RoutingKeys(name, distribution, keys.toArray(new String[keys.size()]), weightArray);
+        }
+        NamePattern pattern = new NamePattern(space.trim());
+        String[] keys = new String[pattern.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = pattern.nameAt(i).intern();
+        }
+        double[] weights = null;
+        if (DISTRIBUTION_ZIPF.equals(distribution)) {
+            weights = new double[keys.length];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = 1.0 / Math.pow(i + 1, exponent);
+            }
+        }
+        return new RoutingKeys(name, distribution, keys, weights);
+    }
+
+    /*
+     * Vose's alias method: each slot holds the probability of its own key
+     * and the key to take otherwise.
+     */
+    private void buildAliasTables(double[] weights) {
+        int n = weights.length;
+        double sum = 0;
+        for (double weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative routing key weight");
+            }
+            sum += weight;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("Routing key weights add up to nothing");
+        }
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / sum;
+            if (scaled[i] < 1) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        while (largeCount > 0) {
+            probability[large[--largeCount]] = 1;
+        }
+        while (smallCount > 0) {
+            probability[small[--smallCount]] = 1; // rounding left overs
+        }
+    }
+
+    /**
+     * @param thread distinguishes the threads, so they don't all pick the same keys
+     * @return a cursor for one publisher thread
+     */
+    public Cursor cursor(int thread) {
+        return new Cursor(thread);
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    private synchronized void addTotals(int[] indices, long[] counts, int size) {
+        for (int i = 0; i < size; i++) {
+            totals[indices[i]] += counts[i];
+        }
+    }
+
+    private synchronized void logTotals() {
+        int used = 0;
+        long messages = 0;
+        for (long total : totals) {
+            if (total > 0) {
+                used++;
+                messages += total;
+            }
+        }
+        int[] top = new int[Math.min(TOP_KEYS, totals.length)];
+        long[] topCounts = new long[top.length];
+        int topSize = 0;
+        for (int i = 0; i < totals.length; i++) {
+            topSize = insertTop(top, topCounts, topSize, i, totals[i]);
+        }
+        log.info(name + " published " + messages + " messages with " + used + " of " + keys.length + " "
+                + distribution + " routing keys, hottest: " + describe(top, topCounts, topSize));
+    }
+
+    private String describe(int[] top, long[] topCounts, int topSize) {
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < topSize; i++) {
+            if (i > 0) {
+                description.append(", ");
+            }
+            description.append(keys[top[i]]).append('=').append(topCounts[i]);
+        }
+        return description.toString();
+    }
+
+    /*
+     * Keep the keys with the highest counts, ordered, in the given arrays.
+     */
+    private static int insertTop(int[] top, long[] topCounts, int size, int key, long count) {
+        if (count == 0 || (size == top.length && count <= topCounts[size - 1])) {
+            return size;
+        }
+        int position = size < top.length ? size++ : size - 1;
+        while (position > 0 && topCounts[position - 1] < count) {
+            top[position] = top[position - 1];
+            topCounts[position] = topCounts[position - 1];
+            position--;
+        }
+        top[position] = key;
+        topCounts[position] = count;
+        return size;
+    }
+
+    /**
+     * Picks the keys for one publisher thread and counts how often each was
+     * picked since the last report, in a small hash table sized to the keys
+     * actually used rather than to the key space.
+     */
+    public final class Cursor {
+        private long seed;
+        private int next;
+        private int[] slotKeys = new int[64];
+        private long[] slotCounts = new long[64];
+        private int[] usedSlots = new int[32];
+        private int used;
+
+        Cursor(int thread) {
+            this.seed = 0x5eedL + thread * 0x9E3779B97F4A7C15L;
+            this.next = Math.abs(thread % keys.length);
+            Arrays.fill(slotKeys, -1);
+        }
+
+        /**
+         * @return the routing key for the next message
+         */
+        public String next() {
+            int index;
+            if (DISTRIBUTION_ROUND_ROBIN.equals(distribution)) {
+                index = next;
+                if (++next == keys.length) {
+                    next = 0;
+                }
+            } else {
+                seed ^= seed << 13;
+                seed ^= seed >>> 7;
+                seed ^= seed << 17;
+                double point = (seed >>> 11) * 0x1.0p-53 * keys.length;
+                index = (int) point;
+                if (probability != null && point - index >= probability[index]) {
+                    index = alias[index];
+                }
+            }
+            count(index);
+            return keys[index];
+        }
+
+        private void count(int key) {
+            int mask = slotKeys.length - 1;
+            int slot = (key * 0x9E3779B9) >>> 7 & mask;
+            while (slotKeys[slot] != key) {
+                if (slotKeys[slot] < 0) {
+                    if (used * 2 >= slotKeys.length) {
+                        grow();
+                        count(key);
+                        return;
+                    }
+                    slotKeys[slot] = key;
+                    usedSlots[used++] = slot;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slotCounts[slot]++;
+        }
+
+        private void grow() {
+            int[] oldKeys = slotKeys;
+            long[] oldCounts = slotCounts;
+            int[] oldUsed = usedSlots;
+            int oldSize = used;
+            slotKeys = new int[oldKeys.length * 2];
+            slotCounts = new long[oldKeys.length * 2];
+            usedSlots = new int[oldKeys.length];
+            used = 0;
+            Arrays.fill(slotKeys, -1);
+            int mask = slotKeys.length - 1;
+            for (int i = 0; i < oldSize; i++) {
+                int key = oldKeys[oldUsed[i]];
+                int slot = (key * 0x9E3779B9) >>> 7 & mask;
+                while (slotKeys[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slotKeys[slot] = key;
+                slotCounts[slot] = oldCounts[oldUsed[i]];
+                usedSlots[used++] = slot;
+            }
+        }
+
+        /**
+         * Describe the keys picked since the last call, add them to the
+         * publisher's totals and start counting afresh.
+         *
+         * @return the number of distinct keys and the most used ones with their counts
+         */
+        public String drainSummary() {
+            int[] top = new int[Math.min(TOP_KEYS, keys.length)];
+            long[] topCounts = new long[top.length];
+            int topSize = 0;
+            int[] indices = new int[used];
+            long[] counts = new long[used];
+            for (int i = 0; i < used; i++) {
+                int slot = usedSlots[i];
+                indices[i] = slotKeys[slot];
+                counts[i] = slotCounts[slot];
+                topSize = insertTop(top, topCounts, topSize, indices[i], counts[i]);
+                slotKeys[slot] = -1;
+                slotCounts[slot] = 0;
+            }
+            addTotals(indices, counts, used);
+            String summary = used + " keys, " + describe(top, topCounts, topSize);
+            used = 0;
+            return summary;
+        }
+    }
+}
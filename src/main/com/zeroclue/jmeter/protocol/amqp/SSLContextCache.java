@@ -0,0 +1,163 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Process-wide cache of SSLContexts built from a PKCS12 key store and a JKS
+ * trust store.
+ *
+ * Loading the stores and initialising the key and trust managers is expensive,
+ * so contexts are shared by every connection using the same stores, passwords
+ * and protocol. A cached context is rebuilt when either store file has been
+ * modified since it was loaded.
+ */
+public final class SSLContextCache {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong totalBuildNanos = new AtomicLong();
+
+    private SSLContextCache() {
+    }
+
+    /**
+     * Return a context for the given stores, building it on first use or when
+     * one of the store files changed on disk.
+     *
+     * @param keyStore path to the PKCS12 key store
+     * @param keyStorePass password of the key store
+     * @param trustStore path to the JKS trust store
+     * @param trustStorePass password of the trust store
+     * @param protocol the SSLContext protocol, e.g. TLS
+     * @return an initialised SSLContext
+     * @throws IOException if one of the stores cannot be read
+     */
+    public static SSLContext getContext(String keyStore, String keyStorePass,
+                                        String trustStore, String trustStorePass,
+                                        String protocol) throws IOException, NoSuchAlgorithmException, KeyManagementException,
+            KeyStoreException, CertificateException, UnrecoverableKeyException {
+        String key = keyStore + "|" + keyStorePass + "|" + trustStore + "|" + trustStorePass + "|" + protocol;
+        long keyStoreModified = new File(keyStore).lastModified();
+        long trustStoreModified = new File(trustStore).lastModified();
+
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry != null && entry.keyStoreModified == keyStoreModified && entry.trustStoreModified == trustStoreModified) {
+                hits.incrementAndGet();
+                return entry.context;
+            }
+            if (entry != null) {
+                log.info("Key or trust store changed on disk, rebuilding SSLContext for " + keyStore);
+            }
+
+            long start = System.nanoTime();
+            SSLContext context = build(keyStore, keyStorePass, trustStore, trustStorePass, protocol);
+            long elapsed = System.nanoTime() - start;
+
+            misses.incrementAndGet();
+            totalBuildNanos.addAndGet(elapsed);
+            cache.put(key, new Entry(context, keyStoreModified, trustStoreModified));
+
+            log.info("Built " + protocol + " SSLContext for " + keyStore + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms, " + getStats());
+            return context;
+        }
+    }
+
+    /**
+     * @return a one line summary of the cache effectiveness
+     */
+    public static String getStats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long lookups = hitCount + missCount;
+        return "SSLContext cache hits: " + hitCount + "/" + lookups
+                + " (" + (lookups == 0 ? 0 : hitCount * 100 / lookups) + "%)"
+                + ", builds: " + missCount
+                + ", avg build time: " + (missCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalBuildNanos.get() / missCount)) + "ms";
+    }
+
+    /**
+     * Log the cache effectiveness since the last call, which a warm cache
+     * never does on its own, and start counting afresh. The contexts stay
+     * cached for the next test.
+     */
+    public static void logStats() {
+        synchronized (cache) {
+            if (hits.get() + misses.get() > 0) {
+                log.info(getStats());
+                hits.set(0);
+                misses.set(0);
+                totalBuildNanos.set(0);
+            }
+        }
+    }
+
+    private static SSLContext build(String keyStore, String keyStorePass,
+                                    String trustStore, String trustStorePass,
+                                    String protocol) throws IOException, NoSuchAlgorithmException, KeyManagementException,
+            KeyStoreException, CertificateException, UnrecoverableKeyException {
+        char[] keyPassphrase = keyStorePass.toCharArray();
+        KeyStore keystore = load("PKCS12", keyStore, keyPassphrase);
+
+        KeyManagerFactory keyManager = KeyManagerFactory.getInstance("SunX509");
+        keyManager.init(keystore, keyPassphrase);
+
+        KeyStore truststore = load("JKS", trustStore, trustStorePass.toCharArray());
+
+        TrustManagerFactory trustManager = TrustManagerFactory.getInstance("SunX509");
+        trustManager.init(truststore);
+
+        SSLContext sslContext = SSLContext.getInstance(protocol);
+        sslContext.init(keyManager.getKeyManagers(), trustManager.getTrustManagers(), null);
+        return sslContext;
+    }
+
+    private static KeyStore load(String type, String path, char[] passphrase) throws IOException, NoSuchAlgorithmException,
+            KeyStoreException, CertificateException {
+        KeyStore store = KeyStore.getInstance(type);
+        InputStream in = new FileInputStream(path);
+        try {
+            store.load(in, passphrase);
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    private static final class Entry {
+        private final SSLContext context;
+        private final long keyStoreModified;
+        private final long trustStoreModified;
+
+        Entry(SSLContext context, long keyStoreModified, long trustStoreModified) {
+            this.context = context;
+            this.keyStoreModified = keyStoreModified;
+            this.trustStoreModified = trustStoreModified;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Encodes and decodes the send timestamp a publisher stamps on each message
+ * so that a consumer can measure end-to-end latency.
+ *
+ * Timestamps are nanoseconds since the epoch, derived from System.nanoTime()
+ * anchored to the wall clock once per JVM. Publisher and consumer in the same
+ * JVM therefore share a monotonic clock; across load generators the wall
+ * clocks must be synchronised, or their difference configured as a clock
+ * offset on the consumer.
+ *
+ * A timestamp travels either as a long valued header or as an 8 byte big
+ * endian prefix of the body.
+ */
+public final class SendTimestamps {
+
+    public static final String MODE_NONE = "none";
+    public static final String MODE_HEADER = "header";
+    public static final String MODE_BODY = "body";
+    public static final String[] MODES = new String[]{MODE_NONE, MODE_HEADER, MODE_BODY};
+
+    public static final String HEADER = "x-send-time-nanos";
+    public static final int PREFIX_LENGTH = 8;
+
+    private static final long BASE_EPOCH_NANOS = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private static final long BASE_NANO_TIME = System.nanoTime();
+
+    private SendTimestamps() {
+    }
+
+    /**
+     * @return the current time in nanoseconds since the epoch
+     */
+    public static long now() {
+        return fromNanoTime(System.nanoTime());
+    }
+
+    /**
+     * @param nanoTime a System.nanoTime() value
+     * @return the same instant in nanoseconds since the epoch
+     */
+    public static long fromNanoTime(long nanoTime) {
+        return BASE_EPOCH_NANOS + (nanoTime - BASE_NANO_TIME);
+    }
+
+    /**
+     * Copy a body into a new array leaving room for the timestamp prefix.
+     *
+     * @param body the message body
+     * @return a buffer to pass to {@link #writePrefix(byte[], long)} before each publish
+     */
+    public static byte[] prefixBuffer(byte[] body) {
+        byte[] buffer = new byte[PREFIX_LENGTH + body.length];
+        System.arraycopy(body, 0, buffer, PREFIX_LENGTH, body.length);
+        return buffer;
+    }
+
+    public static void writePrefix(byte[] buffer, long nanos) {
+        for (int i = PREFIX_LENGTH - 1; i >= 0; i--) {
+            buffer[i] = (byte) nanos;
+            nanos >>>= 8;
+        }
+    }
+
+    public static long readPrefix(byte[] body) {
+        long nanos = 0;
+        for (int i = 0; i < PREFIX_LENGTH; i++) {
+            nanos = (nanos << 8) | (body[i] & 0xff);
+        }
+        return nanos;
+    }
+
+    /**
+     * Read the send timestamp of a delivery.
+     *
+     * @param mode where the timestamp was stamped, one of {@link #MODES}
+     * @param properties the message properties
+     * @param body the message body
+     * @return the send time in nanoseconds since the epoch, or -1 if the message carries none
+     */
+    public static long read(String mode, AMQP.BasicProperties properties, byte[] body) {
+        if (MODE_HEADER.equals(mode)) {
+            Map<String, Object> headers = properties == null ? null : properties.getHeaders();
+            Object value = headers == null ? null : headers.get(HEADER);
+            return value instanceof Number ? ((Number) value).longValue() : -1;
+        }
+        if (MODE_BODY.equals(mode)) {
+            return body != null && body.length >= PREFIX_LENGTH ? readPrefix(body) : -1;
+        }
+        return -1;
+    }
+}
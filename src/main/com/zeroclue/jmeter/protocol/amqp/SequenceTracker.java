@@ -0,0 +1,275 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Checks the deliveries of a consumer sampler against the integrity headers
+ * stamped by the publishers, counting per producer the sequence numbers that
+ * never arrived, arrived twice or arrived with a body not matching its
+ * checksum.
+ *
+ * Each producer gets a sliding window of the last {@link #WINDOW} sequence
+ * numbers as a bitset, so memory stays bounded however many messages pass.
+ * A number counts as a gap once it leaves the window unseen; one arriving
+ * after that is counted as late instead, and one arriving out of order
+ * within the window as reordered, which is normal with competing consumers.
+ * Numbers below the first one seen from a producer were sent before the
+ * consumer started and are not counted.
+ *
+ * Shared by all threads of a consumer sampler, since competing consumers
+ * each only see part of a producer's sequence.
+ */
+public final class SequenceTracker {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int WINDOW = 1 << 16;
+    private static final int MASK = WINDOW - 1;
+
+    public static final int CHECKED = 0;
+    public static final int GAPS = 1;
+    public static final int DUPLICATES = 2;
+    public static final int REORDERED = 3;
+    public static final int LATE = 4;
+    public static final int CORRUPT = 5;
+    public static final int UNTRACKED = 6;
+    public static final int COUNTERS = 7;
+
+    private static final String[] NAMES = new String[]{
+            "checked", "gaps", "duplicates", "reordered", "late", "checksum-failures", "untracked"};
+
+    private static final Map<String, SequenceTracker> trackers = new HashMap<String, SequenceTracker>();
+
+    private final String name;
+    private final long[] counts = new long[COUNTERS];
+    private final long[] totals = new long[COUNTERS];
+
+    // producer id -> window, open addressing with linear probing
+    private long[] producerIds = new long[16];
+    private Window[] windows = new Window[16];
+    private int producers;
+
+    private SequenceTracker(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the tracker of a consumer sampler, creating it on first use.
+     *
+     * @param name the sampler the tracker belongs to
+     * @return the tracker
+     */
+    public static synchronized SequenceTracker forSampler(String name) {
+        SequenceTracker tracker = trackers.get(name);
+        if (tracker == null) {
+            tracker = new SequenceTracker(name);
+            trackers.put(name, tracker);
+        }
+        return tracker;
+    }
+
+    /**
+     * Log the totals of the trackers of the test, counting the numbers still
+     * missing from their windows as gaps, and forget them.
+     */
+    public static synchronized void closeAll() {
+        for (SequenceTracker tracker : trackers.values()) {
+            tracker.logTotals();
+        }
+        trackers.clear();
+    }
+
+    /**
+     * Check a delivery.
+     *
+     * @param properties the properties of the delivery
+     * @param body the body of the delivery
+     */
+    public void check(AMQP.BasicProperties properties, byte[] body) {
+        Number producer = MessageIntegrity.readHeader(properties, MessageIntegrity.HEADER_PRODUCER);
+        Number sequence = MessageIntegrity.readHeader(properties, MessageIntegrity.HEADER_SEQUENCE);
+        Number checksum = MessageIntegrity.readHeader(properties, MessageIntegrity.HEADER_CHECKSUM);
+        if (producer == null || sequence == null || checksum == null) {
+            synchronized (this) {
+                count(UNTRACKED, 1);
+            }
+            return;
+        }
+        // outside the lock, so the threads sharing the tracker checksum in parallel
+        boolean corrupt = (MessageIntegrity.crc32c(body, 0, body.length) & 0xffffffffL) != checksum.longValue();
+        synchronized (this) {
+            count(CHECKED, 1);
+            if (corrupt) {
+                count(CORRUPT, 1);
+            }
+            Window window = window(producer.longValue(), sequence.longValue());
+            if (window != null) {
+                window.record(sequence.longValue());
+            }
+        }
+    }
+
+    /**
+     * Add the counts since the last call to the given array and reset them.
+     *
+     * @param into an array of {@link #COUNTERS} counts, indexed by {@link #CHECKED}, {@link #GAPS} and so on
+     */
+    public synchronized void drain(long[] into) {
+        for (int i = 0; i < COUNTERS; i++) {
+            into[i] += counts[i];
+            counts[i] = 0;
+        }
+    }
+
+    /**
+     * @param index one of {@link #CHECKED}, {@link #GAPS} and so on
+     * @return the name the count is reported under
+     */
+    public static String nameOf(int index) {
+        return NAMES[index];
+    }
+
+    private void count(int index, long n) {
+        counts[index] += n;
+        totals[index] += n;
+    }
+
+    /*
+     * Find the window of a producer, starting one at the given sequence
+     * number for a producer not seen before.
+     */
+    private Window window(long producer, long sequence) {
+        int slot = slot(producer, producerIds.length);
+        while (windows[slot] != null) {
+            if (producerIds[slot] == producer) {
+                return windows[slot];
+            }
+            slot = (slot + 1) & (producerIds.length - 1);
+        }
+        if (producers * 2 >= producerIds.length) {
+            grow();
+            return window(producer, sequence);
+        }
+        producerIds[slot] = producer;
+        windows[slot] = new Window(sequence);
+        producers++;
+        return null; // the first number seen needs no check
+    }
+
+    private void grow() {
+        long[] oldIds = producerIds;
+        Window[] oldWindows = windows;
+        producerIds = new long[oldIds.length * 2];
+        windows = new Window[oldIds.length * 2];
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldWindows[i] != null) {
+                int slot = slot(oldIds[i], producerIds.length);
+                while (windows[slot] != null) {
+                    slot = (slot + 1) & (producerIds.length - 1);
+                }
+                producerIds[slot] = oldIds[i];
+                windows[slot] = oldWindows[i];
+            }
+        }
+    }
+
+    private static int slot(long producer, int size) {
+        long hash = producer * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (size - 1);
+    }
+
+    private synchronized void logTotals() {
+        long pending = 0;
+        for (Window window : windows) {
+            if (window != null) {
+                pending += window.unseen();
+            }
+        }
+        StringBuilder summary = new StringBuilder(name).append(" message integrity: ")
+                .append(producers).append(" producers");
+        for (int i = 0; i < COUNTERS; i++) {
+            summary.append(", ").append(totals[i] + (i == GAPS ? pending : 0)).append(' ').append(NAMES[i]);
+        }
+        if (totals[GAPS] + pending > 0 || totals[DUPLICATES] > 0 || totals[CORRUPT] > 0) {
+            log.warn(summary.toString());
+        } else {
+            log.info(summary.toString());
+        }
+    }
+
+    /**
+     * The last {@link #WINDOW} sequence numbers of a producer, a bit set for each that arrived.
+     */
+    private final class Window {
+        private final long[] seen = new long[WINDOW / 64];
+        private final long first;
+        private long highest;
+
+        Window(long first) {
+            Arrays.fill(seen, -1L); // as if everything before had arrived
+            this.first = first;
+            highest = first;
+        }
+
+        void record(long sequence) {
+            if (sequence < first) {
+                return; // sent before the consumer started, or taken by a competing consumer then
+            }
+            if (sequence > highest) {
+                long ahead = sequence - highest;
+                if (ahead >= WINDOW) {
+                    // the whole window and the numbers skipped beyond it leave unseen
+                    count(GAPS, unseen() + ahead - WINDOW);
+                    Arrays.fill(seen, 0L);
+                } else {
+                    for (long next = highest + 1; next <= sequence; next++) {
+                        int bit = (int) (next & MASK);
+                        if (!isSet(bit)) {
+                            count(GAPS, 1);
+                        }
+                        clear(bit);
+                    }
+                }
+                set((int) (sequence & MASK));
+                highest = sequence;
+            } else if (highest - sequence < WINDOW) {
+                int bit = (int) (sequence & MASK);
+                if (isSet(bit)) {
+                    count(DUPLICATES, 1);
+                } else {
+                    set(bit);
+                    count(REORDERED, 1);
+                }
+            } else {
+                count(LATE, 1);
+            }
+        }
+
+        long unseen() {
+            long set = 0;
+            for (long word : seen) {
+                set += Long.bitCount(word);
+            }
+            return WINDOW - set;
+        }
+
+        private boolean isSet(int bit) {
+            return (seen[bit >>> 6] & (1L << bit)) != 0;
+        }
+
+        private void set(int bit) {
+            seen[bit >>> 6] |= 1L << bit;
+        }
+
+        private void clear(int bit) {
+            seen[bit >>> 6] &= ~(1L << bit);
+        }
+    }
+}
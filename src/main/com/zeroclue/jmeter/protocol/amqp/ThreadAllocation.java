@@ -0,0 +1,56 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.lang.management.ManagementFactory;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Reads the number of bytes the current thread has allocated on the heap, as
+ * tracked by HotSpot based JVMs, so samplers can report their own allocation
+ * rate per message.
+ */
+public final class ThreadAllocation {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final com.sun.management.ThreadMXBean threads = lookup();
+
+    private ThreadAllocation() {
+    }
+
+    /**
+     * @return whether the JVM tracks allocations per thread
+     */
+    public static boolean isSupported() {
+        return threads != null;
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if not supported
+     */
+    public static long allocatedBytes() {
+        if (threads == null) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean lookup() {
+        try {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+                if (threadBean.isThreadAllocatedMemorySupported()) {
+                    threadBean.setThreadAllocatedMemoryEnabled(true);
+                    return threadBean;
+                }
+            }
+        } catch (LinkageError e) {
+            log.debug("Per thread allocation tracking is not available", e);
+        } catch (UnsupportedOperationException e) {
+            log.debug("Per thread allocation tracking is not available", e);
+        }
+        return null;
+    }
+}
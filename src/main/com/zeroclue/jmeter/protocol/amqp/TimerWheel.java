@@ -0,0 +1,100 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Arrays;
+
+/**
+ * Single level hashed timer wheel for deadlines up to a fixed maximum delay.
+ *
+ * Ids are appended to the bucket of the tick their deadline falls in, so
+ * scheduling is constant time and expiring walks only the buckets of the
+ * ticks that passed. The wheel spans more than the maximum delay, so a bucket
+ * never holds ids from different rounds. Entries are not removed when their
+ * timer becomes obsolete; the {@link Expiry} must ignore ids that already
+ * completed.
+ *
+ * Not thread safe, meant to be driven by a single sampler thread.
+ */
+public class TimerWheel {
+
+    public interface Expiry {
+        void expired(long id);
+    }
+
+    private static final int BUCKETS_PER_DELAY = 256;
+    private static final int INITIAL_BUCKET_SIZE = 8;
+
+    private final long tickNanos;
+    private final long origin = System.nanoTime();
+    private final int mask;
+    private final long[][] buckets;
+    private final int[] sizes;
+    private long lastTick;
+
+    /**
+     * @param maxDelayNanos the longest delay that will be scheduled
+     */
+    public TimerWheel(long maxDelayNanos) {
+        this.tickNanos = Math.max(1000000L, maxDelayNanos / BUCKETS_PER_DELAY);
+        int wheelSize = Integer.highestOneBit((int) (maxDelayNanos / tickNanos) + 2) << 1;
+        this.mask = wheelSize - 1;
+        this.buckets = new long[wheelSize][];
+        this.sizes = new int[wheelSize];
+    }
+
+    /**
+     * @return the length of a tick, the precision of the deadlines
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Schedule a timer. {@link #expire} must have been called within the
+     * maximum delay before, or the timer may fire a round early.
+     *
+     * @param id the id passed to the expiry once the deadline passed
+     * @param deadlineNanos a System.nanoTime() value at most the maximum delay ahead
+     */
+    public void schedule(long id, long deadlineNanos) {
+        long tick = (deadlineNanos - origin + tickNanos - 1) / tickNanos;
+        int bucket = (int) Math.max(tick, lastTick + 1) & mask;
+        long[] ids = buckets[bucket];
+        if (ids == null) {
+            ids = buckets[bucket] = new long[INITIAL_BUCKET_SIZE];
+        } else if (sizes[bucket] == ids.length) {
+            ids = buckets[bucket] = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[sizes[bucket]++] = id;
+    }
+
+    /**
+     * Pass the ids whose deadline passed by the given time to the expiry.
+     *
+     * @param nowNanos the current System.nanoTime()
+     * @param expiry receives the expired ids
+     */
+    public void expire(long nowNanos, Expiry expiry) {
+        long currentTick = (nowNanos - origin) / tickNanos;
+        for (long tick = lastTick + 1; tick <= currentTick; tick++) {
+            int bucket = (int) tick & mask;
+            long[] ids = buckets[bucket];
+            for (int i = 0; i < sizes[bucket]; i++) {
+                expiry.expired(ids[i]);
+            }
+            sizes[bucket] = 0;
+            if (tick - lastTick > mask) {
+                break; // every bucket has been visited
+            }
+        }
+        if (currentTick > lastTick) {
+            lastTick = currentTick;
+        }
+    }
+
+    /**
+     * Forget all timers.
+     */
+    public void clear() {
+        Arrays.fill(sizes, 0);
+    }
+}
@@ -0,0 +1,147 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * Remembers the queues, exchanges and bindings declared during a test, so
+ * each is declared once rather than by every thread on every channel, and
+ * the queues purged when the test ends, so each is purged once.
+ *
+ * Samplers declare their topology when the test starts; threads only
+ * declare what could not be declared then, such as names made of
+ * variables. Declaring holds a lock per item, so threads never race to
+ * redeclare it, and an item is only remembered once its declare succeeded.
+ *
+ * Items are identified by a key made of the broker and everything that is
+ * declared about them, see {@link #queueKey}, {@link #exchangeKey} and
+ * {@link #bindingKey}.
+ */
+public final class TopologyManager {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final ConcurrentMap<String, Long> declared = new ConcurrentHashMap<String, Long>(); // key -> when, System.nanoTime()
+    private static final Set<String> tornDown = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static boolean running;
+
+    private TopologyManager() {
+    }
+
+    /**
+     * Forget the topology of the previous test. Called by every sampler as
+     * the test starts; only the first call of a test has an effect.
+     */
+    public static synchronized void testStarted() {
+        if (!running) {
+            declared.clear();
+            locks.clear();
+            skipped.set(0);
+            running = true;
+        }
+    }
+
+    /**
+     * Start the teardown phase. Called by every sampler as the test ends;
+     * only the first call of a test has an effect.
+     */
+    public static synchronized void testEnded() {
+        if (running) {
+            log.info("Declared " + declared.size() + " queues, exchanges and bindings, skipped "
+                    + skipped.get() + " redundant declares");
+            tornDown.clear();
+            running = false;
+        }
+    }
+
+    /**
+     * Begin declaring an item. If it must be declared, its lock is held
+     * until {@link #end(String, boolean)}.
+     *
+     * @param key the item
+     * @return whether the caller must declare the item, false if it already was
+     */
+    public static boolean begin(String key) {
+        if (declared.containsKey(key)) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        ReentrantLock lock = locks.get(key);
+        if (lock == null) {
+            ReentrantLock created = new ReentrantLock();
+            lock = locks.putIfAbsent(key, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        lock.lock();
+        if (declared.containsKey(key)) {
+            // declared by another thread while this one waited
+            lock.unlock();
+            skipped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Finish declaring an item started with {@link #begin(String)}.
+     *
+     * @param key the item
+     * @param success whether it was declared, else the next thread will try again
+     */
+    public static void end(String key, boolean success) {
+        if (success) {
+            declared.put(key, System.nanoTime());
+        }
+        locks.get(key).unlock();
+    }
+
+    /**
+     * Forget that an item was declared, so that the next {@link #begin(String)}
+     * declares it again, e.g. after the node it lived on failed. An item
+     * declared since is kept, so of the threads recovering from the same
+     * failure only the first redeclares it.
+     *
+     * @param key the item
+     * @param lostAt when the caller lost its channel, from System.nanoTime()
+     */
+    public static void forget(String key, long lostAt) {
+        Long at = declared.get(key);
+        if (at != null && at - lostAt <= 0) {
+            declared.remove(key, at);
+        }
+    }
+
+    /**
+     * @param key a teardown action, such as purging a queue
+     * @return true for the first caller in the teardown phase, who must take the action
+     */
+    public static boolean claimTeardown(String key) {
+        testEnded();
+        return tornDown.add(key);
+    }
+
+    public static String queueKey(String broker, String queue, boolean durable, boolean exclusive,
+                                  boolean autoDelete, Map<String, Object> arguments) {
+        return "queue|" + broker + "|" + queue + "|" + durable + "|" + exclusive + "|" + autoDelete + "|" + arguments;
+    }
+
+    public static String exchangeKey(String broker, String exchange, String type, boolean durable) {
+        return "exchange|" + broker + "|" + exchange + "|" + type + "|" + durable;
+    }
+
+    public static String bindingKey(String broker, String queue, String exchange, String routingKey) {
+        return "binding|" + broker + "|" + queue + "|" + exchange + "|" + routingKey;
+    }
+}
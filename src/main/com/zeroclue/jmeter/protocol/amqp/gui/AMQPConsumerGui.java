@@ -2,11 +2,15 @@ package com.zeroclue.jmeter.protocol.amqp.gui;
 
 import javax.swing.JCheckBox;
 import javax.swing.JPanel;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPConsumer;
+import com.zeroclue.jmeter.protocol.amqp.SendTimestamps;
 
 import java.awt.*;
 
@@ -17,9 +21,19 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
     protected JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
     protected JLabeledTextField prefetchCount = new JLabeledTextField("Prefetch Count");
+    protected JLabeledTextField ringBufferSize = new JLabeledTextField("Ring Buffer Size");
+    protected JLabeledChoice waitStrategy = new JLabeledChoice("Wait Strategy", new String[]{ "BLOCK", "PARK", "SPIN" });
+    protected JLabeledChoice timestamp = new JLabeledChoice("Send Timestamp", SendTimestamps.MODES);
+    protected JLabeledTextField clockOffset = new JLabeledTextField("Clock Offset (ms)");
+    protected JLabeledTextField consumers = new JLabeledTextField("Consumers");
+    protected JLabeledTextField workers = new JLabeledTextField("Worker Threads");
+    protected JLabeledTextField ackBatchSize = new JLabeledTextField("Ack Batch Size");
+    protected JLabeledTextField ackBatchDelay = new JLabeledTextField("Ack Batch Delay (ms)");
     private final JCheckBox purgeQueue = new JCheckBox("Purge Queue", false);
     private final JCheckBox autoAck = new JCheckBox("Auto ACK", true);
     private final JCheckBox readResponse = new JCheckBox("Read Response", AMQPConsumer.DEFAULT_READ_RESPONSE);
+    private final JCheckBox decompress = new JCheckBox("Decompress Bodies", false);
+    private final JCheckBox verifyIntegrity = new JCheckBox("Verify Sequence and Checksum", false);
 
     private JPanel mainPanel;
 
@@ -34,13 +48,64 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         super.init();
 
         mainPanel.add(readResponse);
+        mainPanel.add(decompress);
+        mainPanel.add(verifyIntegrity);
 
         prefetchCount.setPreferredSize(new Dimension(100,25));
         mainPanel.add(prefetchCount);
 
         mainPanel.add(receiveTimeout);
+
+        ringBufferSize.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(ringBufferSize);
+        mainPanel.add(waitStrategy);
+
+        mainPanel.add(timestamp);
+        clockOffset.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(clockOffset);
+
+        consumers.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(consumers);
+
+        workers.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(workers);
+
+        ackBatchSize.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(ackBatchSize);
+
+        ackBatchDelay.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(ackBatchDelay);
         mainPanel.add(purgeQueue);
         mainPanel.add(autoAck);
+
+        ChangeListener dispatching = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                updateDispatchingOptions();
+            }
+        };
+        consumers.addChangeListener(dispatching);
+        workers.addChangeListener(dispatching);
+    }
+
+    /*
+     * The worker threads of several consumers or workers neither decompress,
+     * batch acks nor record sub-results, so those options are disabled then.
+     */
+    private void updateDispatchingOptions() {
+        boolean single = isOne(consumers.getText()) && isOne(workers.getText());
+        decompress.setEnabled(single);
+        ackBatchSize.setEnabled(single);
+        ackBatchDelay.setEnabled(single);
+        setSubResultsEnabled(single);
+    }
+
+    private static boolean isOne(String count) {
+        try {
+            return Integer.parseInt(count.trim()) <= 1;
+        } catch (NumberFormatException e) {
+            return true; // a variable, only known when the test runs
+        }
     }
 
     @Override
@@ -58,10 +123,21 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         AMQPConsumer sampler = (AMQPConsumer) element;
 
         readResponse.setSelected(sampler.getReadResponseAsBoolean());
+        decompress.setSelected(sampler.getDecompressAsBoolean());
+        verifyIntegrity.setSelected(sampler.getVerifyIntegrityAsBoolean());
         prefetchCount.setText(sampler.getPrefetchCount());
         receiveTimeout.setText(sampler.getReceiveTimeout());
+        ringBufferSize.setText(sampler.getRingBufferSize());
+        waitStrategy.setText(sampler.getWaitStrategy());
+        timestamp.setText(sampler.getTimestamp());
+        clockOffset.setText(sampler.getClockOffset());
+        consumers.setText(sampler.getConsumers());
+        workers.setText(sampler.getWorkers());
+        ackBatchSize.setText(sampler.getAckBatchSize());
+        ackBatchDelay.setText(sampler.getAckBatchDelay());
         purgeQueue.setSelected(sampler.purgeQueue());
         autoAck.setSelected(sampler.autoAck());
+        updateDispatchingOptions();
     }
 
     /**
@@ -71,10 +147,21 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
     public void clearGui() {
         super.clearGui();
         readResponse.setSelected(AMQPConsumer.DEFAULT_READ_RESPONSE);
+        decompress.setSelected(false);
+        verifyIntegrity.setSelected(false);
         prefetchCount.setText(AMQPConsumer.DEFAULT_PREFETCH_COUNT_STRING);
         receiveTimeout.setText("");
+        ringBufferSize.setText(AMQPConsumer.DEFAULT_RING_BUFFER_SIZE_STRING);
+        waitStrategy.setText(AMQPConsumer.DEFAULT_WAIT_STRATEGY);
+        timestamp.setText(AMQPConsumer.DEFAULT_TIMESTAMP);
+        clockOffset.setText("0");
+        consumers.setText(AMQPConsumer.DEFAULT_CONSUMERS_STRING);
+        workers.setText(AMQPConsumer.DEFAULT_WORKERS_STRING);
+        ackBatchSize.setText(AMQPConsumer.DEFAULT_ACK_BATCH_SIZE_STRING);
+        ackBatchDelay.setText(AMQPConsumer.DEFAULT_ACK_BATCH_DELAY_STRING);
         purgeQueue.setSelected(false);
         autoAck.setSelected(true);
+        updateDispatchingOptions();
     }
 
     /**
@@ -99,9 +186,19 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         super.modifyTestElement(sampler);
 
         sampler.setReadResponse(readResponse.isSelected());
+        sampler.setDecompress(decompress.isSelected());
+        sampler.setVerifyIntegrity(verifyIntegrity.isSelected());
         sampler.setPrefetchCount(prefetchCount.getText());
 
         sampler.setReceiveTimeout(receiveTimeout.getText());
+        sampler.setRingBufferSize(ringBufferSize.getText());
+        sampler.setWaitStrategy(waitStrategy.getText());
+        sampler.setTimestamp(timestamp.getText());
+        sampler.setClockOffset(clockOffset.getText());
+        sampler.setConsumers(consumers.getText());
+        sampler.setWorkers(workers.getText());
+        sampler.setAckBatchSize(ackBatchSize.getText());
+        sampler.setAckBatchDelay(ackBatchDelay.getText());
         sampler.setPurgeQueue(purgeQueue.isSelected());
         sampler.setAutoAck(autoAck.isSelected());
 
@@ -0,0 +1,140 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPMultiQueueConsumer;
+import com.zeroclue.jmeter.protocol.amqp.SendTimestamps;
+
+/**
+ * GUI of the AMQP multi-queue consumer: the queues to consume from and how
+ * many channels they are spread over.
+ */
+public class AMQPMultiQueueConsumerGui extends AMQPSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private JPanel mainPanel;
+
+    private JLabeledTextField queues = new JLabeledTextField("Queues");
+    private JLabeledTextField channels = new JLabeledTextField("Channels");
+    private JLabeledTextField prefetchCount = new JLabeledTextField("Prefetch Count");
+    private JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
+    private JLabeledChoice timestamp = new JLabeledChoice("Send Timestamp", SendTimestamps.MODES);
+    private JLabeledTextField clockOffset = new JLabeledTextField("Clock Offset (ms)");
+    private final JCheckBox autoAck = new JCheckBox("Auto ACK", true);
+
+    public AMQPMultiQueueConsumerGui() {
+        init();
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected void init() {
+        super.init();
+
+        queues.setPreferredSize(new Dimension(100, 25));
+        channels.setPreferredSize(new Dimension(100, 25));
+        prefetchCount.setPreferredSize(new Dimension(100, 25));
+        receiveTimeout.setPreferredSize(new Dimension(100, 25));
+        clockOffset.setPreferredSize(new Dimension(100, 25));
+
+        mainPanel.add(queues);
+        mainPanel.add(channels);
+        mainPanel.add(prefetchCount);
+        mainPanel.add(receiveTimeout);
+        mainPanel.add(timestamp);
+        mainPanel.add(clockOffset);
+        mainPanel.add(autoAck);
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP Multi-Queue Consumer";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPMultiQueueConsumer)) return;
+        AMQPMultiQueueConsumer sampler = (AMQPMultiQueueConsumer) element;
+
+        queues.setText(sampler.getQueues());
+        channels.setText(sampler.getChannels());
+        prefetchCount.setText(sampler.getPrefetchCount());
+        receiveTimeout.setText(sampler.getReceiveTimeout());
+        timestamp.setText(sampler.getTimestamp());
+        clockOffset.setText(sampler.getClockOffset());
+        autoAck.setSelected(sampler.autoAck());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPMultiQueueConsumer sampler = new AMQPMultiQueueConsumer();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQPMultiQueueConsumer sampler = (AMQPMultiQueueConsumer) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setQueues(queues.getText());
+        sampler.setChannels(channels.getText());
+        sampler.setPrefetchCount(prefetchCount.getText());
+        sampler.setReceiveTimeout(receiveTimeout.getText());
+        sampler.setTimestamp(timestamp.getText());
+        sampler.setClockOffset(clockOffset.getText());
+        sampler.setAutoAck(autoAck.isSelected());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        queue.setText(""); // the queues are named below
+        queues.setText("shard-{0..255}");
+        channels.setText(AMQPMultiQueueConsumer.DEFAULT_CHANNELS_STRING);
+        prefetchCount.setText(AMQPMultiQueueConsumer.DEFAULT_PREFETCH_COUNT_STRING);
+        receiveTimeout.setText("");
+        timestamp.setText(AMQPMultiQueueConsumer.DEFAULT_TIMESTAMP);
+        clockOffset.setText("0");
+        autoAck.setSelected(true);
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        mainPanel = panel;
+    }
+}
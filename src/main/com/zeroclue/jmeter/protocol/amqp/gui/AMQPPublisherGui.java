@@ -7,10 +7,17 @@ import javax.swing.*;
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.config.gui.ArgumentsPanel;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextArea;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPPublisher;
+import com.zeroclue.jmeter.protocol.amqp.ArrivalSchedule;
+import com.zeroclue.jmeter.protocol.amqp.MessageCorpus;
+import com.zeroclue.jmeter.protocol.amqp.PayloadCompression;
+import com.zeroclue.jmeter.protocol.amqp.PayloadPool;
+import com.zeroclue.jmeter.protocol.amqp.RoutingKeys;
+import com.zeroclue.jmeter.protocol.amqp.SendTimestamps;
 
 /**
  * AMQP Sampler
@@ -35,12 +42,36 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
     */
     private JLabeledTextArea message = new JLabeledTextArea("Message Content");
     private JLabeledTextField messageRoutingKey = new JLabeledTextField("Routing Key");
+    private JLabeledChoice routingKeyDistribution = new JLabeledChoice("Routing Key Distribution", RoutingKeys.DISTRIBUTIONS);
+    private JLabeledTextField routingKeySpace = new JLabeledTextField("Routing Keys");
+    private JLabeledTextField routingKeyExponent = new JLabeledTextField("Zipf Exponent");
     private JLabeledTextField messageType = new JLabeledTextField("Message Type");
     private JLabeledTextField replyToQueue = new JLabeledTextField("Reply-To Queue");
     private JLabeledTextField correlationId = new JLabeledTextField("Correlation Id");
 
     private JCheckBox persistent = new JCheckBox("Persistent?", AMQPPublisher.DEFAULT_PERSISTENT);
     private JCheckBox useTx = new JCheckBox("Use Transactions?", AMQPPublisher.DEFAULT_USE_TX);
+    private JCheckBox useConfirms = new JCheckBox("Use Publisher Confirms?", AMQPPublisher.DEFAULT_USE_CONFIRMS);
+    private JCheckBox integrity = new JCheckBox("Add Sequence and Checksum?", AMQPPublisher.DEFAULT_INTEGRITY);
+    private JCheckBox pauseWhenBlocked = new JCheckBox("Pause While Blocked?", AMQPPublisher.DEFAULT_PAUSE_WHEN_BLOCKED);
+    private JLabeledTextField maxOutstandingConfirms = new JLabeledTextField("Max Outstanding Confirms");
+    private JLabeledChoice timestamp = new JLabeledChoice("Send Timestamp", SendTimestamps.MODES);
+    private JLabeledChoice arrivalProfile = new JLabeledChoice("Arrival Rate Profile", ArrivalSchedule.PROFILES);
+    private JLabeledTextField arrivalRate = new JLabeledTextField("Rate (msg/s)");
+    private JLabeledTextField targetRate = new JLabeledTextField("Target Rate (msg/s)");
+    private JLabeledTextField ratePeriod = new JLabeledTextField("Step/Ramp Period (s)");
+
+    private JLabeledChoice payload = new JLabeledChoice("Payload", AMQPPublisher.PAYLOADS);
+    private JLabeledTextField payloadSize = new JLabeledTextField("Payload Size (bytes)");
+    private JLabeledTextField payloadMaxSize = new JLabeledTextField("Payload Max Size (bytes)");
+    private JLabeledTextField payloadSigma = new JLabeledTextField("Lognormal Sigma");
+    private JLabeledTextField payloadHistogramFile = new JLabeledTextField("Size Histogram File");
+    private JLabeledTextField payloadPoolSize = new JLabeledTextField("Payload Pool Size");
+    private JLabeledTextField payloadPoolMaxMB = new JLabeledTextField("Payload Pool Max (MB)");
+    private JLabeledChoice payloadOrder = new JLabeledChoice("Payload Order", PayloadPool.ORDERS);
+    private JLabeledTextField corpusFile = new JLabeledTextField("Corpus File");
+    private JLabeledChoice corpusOrder = new JLabeledChoice("Corpus Order", MessageCorpus.ORDERS);
+    private JLabeledChoice contentEncoding = new JLabeledChoice("Content Encoding", PayloadCompression.ENCODINGS);
 
     private ArgumentsPanel headers = new ArgumentsPanel("Headers");
 
@@ -72,12 +103,35 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         persistent.setSelected(sampler.getPersistent());
         useTx.setSelected(sampler.getUseTx());
+        useConfirms.setSelected(sampler.getUseConfirms());
+        integrity.setSelected(sampler.getIntegrity());
+        pauseWhenBlocked.setSelected(sampler.getPauseWhenBlocked());
+        maxOutstandingConfirms.setText(sampler.getMaxOutstandingConfirms());
+        timestamp.setText(sampler.getTimestamp());
+        arrivalProfile.setText(sampler.getArrivalProfile());
+        arrivalRate.setText(sampler.getArrivalRate());
+        targetRate.setText(sampler.getTargetRate());
+        ratePeriod.setText(sampler.getRatePeriod());
 
         messageRoutingKey.setText(sampler.getMessageRoutingKey());
+        routingKeyDistribution.setText(sampler.getRoutingKeyDistribution());
+        routingKeySpace.setText(sampler.getRoutingKeySpace());
+        routingKeyExponent.setText(sampler.getRoutingKeyExponent());
         messageType.setText(sampler.getMessageType());
         replyToQueue.setText(sampler.getReplyToQueue());
         correlationId.setText(sampler.getCorrelationId());
         message.setText(sampler.getMessage());
+        payload.setText(sampler.getPayload());
+        payloadSize.setText(sampler.getPayloadSize());
+        payloadMaxSize.setText(sampler.getPayloadMaxSize());
+        payloadSigma.setText(sampler.getPayloadSigma());
+        payloadHistogramFile.setText(sampler.getPayloadHistogramFile());
+        payloadPoolSize.setText(sampler.getPayloadPoolSize());
+        payloadPoolMaxMB.setText(sampler.getPayloadPoolMaxMB());
+        payloadOrder.setText(sampler.getPayloadOrder());
+        corpusFile.setText(sampler.getCorpusFile());
+        corpusOrder.setText(sampler.getCorpusOrder());
+        contentEncoding.setText(sampler.getContentEncoding());
         configureHeaders(sampler);
     }
 
@@ -104,12 +158,35 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         sampler.setPersistent(persistent.isSelected());
         sampler.setUseTx(useTx.isSelected());
+        sampler.setUseConfirms(useConfirms.isSelected());
+        sampler.setIntegrity(integrity.isSelected());
+        sampler.setPauseWhenBlocked(pauseWhenBlocked.isSelected());
+        sampler.setMaxOutstandingConfirms(maxOutstandingConfirms.getText());
+        sampler.setTimestamp(timestamp.getText());
+        sampler.setArrivalProfile(arrivalProfile.getText());
+        sampler.setArrivalRate(arrivalRate.getText());
+        sampler.setTargetRate(targetRate.getText());
+        sampler.setRatePeriod(ratePeriod.getText());
 
         sampler.setMessageRoutingKey(messageRoutingKey.getText());
+        sampler.setRoutingKeyDistribution(routingKeyDistribution.getText());
+        sampler.setRoutingKeySpace(routingKeySpace.getText());
+        sampler.setRoutingKeyExponent(routingKeyExponent.getText());
         sampler.setMessage(message.getText());
         sampler.setMessageType(messageType.getText());
         sampler.setReplyToQueue(replyToQueue.getText());
         sampler.setCorrelationId(correlationId.getText());
+        sampler.setPayload(payload.getText());
+        sampler.setPayloadSize(payloadSize.getText());
+        sampler.setPayloadMaxSize(payloadMaxSize.getText());
+        sampler.setPayloadSigma(payloadSigma.getText());
+        sampler.setPayloadHistogramFile(payloadHistogramFile.getText());
+        sampler.setPayloadPoolSize(payloadPoolSize.getText());
+        sampler.setPayloadPoolMaxMB(payloadPoolMaxMB.getText());
+        sampler.setPayloadOrder(payloadOrder.getText());
+        sampler.setCorpusFile(corpusFile.getText());
+        sampler.setCorpusOrder(corpusOrder.getText());
+        sampler.setContentEncoding(contentEncoding.getText());
         sampler.setHeaders((Arguments) headers.createTestElement());
     }
 
@@ -126,22 +203,73 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         super.init();
         persistent.setPreferredSize(new Dimension(100, 25));
         useTx.setPreferredSize(new Dimension(100, 25));
+        useConfirms.setPreferredSize(new Dimension(100, 25));
+        integrity.setPreferredSize(new Dimension(100, 25));
+        pauseWhenBlocked.setPreferredSize(new Dimension(100, 25));
+        maxOutstandingConfirms.setPreferredSize(new Dimension(100, 25));
+        arrivalRate.setPreferredSize(new Dimension(100, 25));
+        targetRate.setPreferredSize(new Dimension(100, 25));
+        ratePeriod.setPreferredSize(new Dimension(100, 25));
         messageRoutingKey.setPreferredSize(new Dimension(100, 25));
+        routingKeySpace.setPreferredSize(new Dimension(100, 25));
+        routingKeyExponent.setPreferredSize(new Dimension(100, 25));
         messageType.setPreferredSize(new Dimension(100, 25));
         replyToQueue.setPreferredSize(new Dimension(100, 25));
         correlationId.setPreferredSize(new Dimension(100, 25));
         message.setPreferredSize(new Dimension(400, 150));
+        payloadSize.setPreferredSize(new Dimension(100, 25));
+        payloadMaxSize.setPreferredSize(new Dimension(100, 25));
+        payloadSigma.setPreferredSize(new Dimension(100, 25));
+        payloadHistogramFile.setPreferredSize(new Dimension(100, 25));
+        payloadPoolSize.setPreferredSize(new Dimension(100, 25));
+        payloadPoolMaxMB.setPreferredSize(new Dimension(100, 25));
+        corpusFile.setPreferredSize(new Dimension(100, 25));
 
         mainPanel.add(persistent);
         mainPanel.add(useTx);
+        mainPanel.add(useConfirms);
+        mainPanel.add(maxOutstandingConfirms);
+        mainPanel.add(timestamp);
+        mainPanel.add(integrity);
+        mainPanel.add(pauseWhenBlocked);
+        mainPanel.add(arrivalProfile);
+        mainPanel.add(arrivalRate);
+        mainPanel.add(targetRate);
+        mainPanel.add(ratePeriod);
         mainPanel.add(messageRoutingKey);
+        mainPanel.add(routingKeyDistribution);
+        mainPanel.add(routingKeySpace);
+        mainPanel.add(routingKeyExponent);
         mainPanel.add(messageType);
         mainPanel.add(replyToQueue);
         mainPanel.add(correlationId);
         mainPanel.add(headers);
+        mainPanel.add(payload);
+        mainPanel.add(payloadSize);
+        mainPanel.add(payloadMaxSize);
+        mainPanel.add(payloadSigma);
+        mainPanel.add(payloadHistogramFile);
+        mainPanel.add(payloadPoolSize);
+        mainPanel.add(payloadPoolMaxMB);
+        mainPanel.add(payloadOrder);
+        mainPanel.add(corpusFile);
+        mainPanel.add(corpusOrder);
+        mainPanel.add(contentEncoding);
         mainPanel.add(message);
     }
 
+    /**
+     * Hide the options that only apply to one-way publishing, for samplers
+     * that wait for a reply to every message.
+     */
+    protected void hideOneWayOptions() {
+        JComponent[] oneWay = new JComponent[]{useTx, useConfirms, maxOutstandingConfirms, timestamp, integrity,
+                pauseWhenBlocked, arrivalProfile, arrivalRate, targetRate, ratePeriod, correlationId};
+        for (JComponent component : oneWay) {
+            component.setVisible(false);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -150,11 +278,34 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         super.clearGui();
         persistent.setSelected(AMQPPublisher.DEFAULT_PERSISTENT);
         useTx.setSelected(AMQPPublisher.DEFAULT_USE_TX);
+        useConfirms.setSelected(AMQPPublisher.DEFAULT_USE_CONFIRMS);
+        integrity.setSelected(AMQPPublisher.DEFAULT_INTEGRITY);
+        pauseWhenBlocked.setSelected(AMQPPublisher.DEFAULT_PAUSE_WHEN_BLOCKED);
+        maxOutstandingConfirms.setText(AMQPPublisher.DEFAULT_MAX_OUTSTANDING_CONFIRMS_STRING);
+        timestamp.setText(AMQPPublisher.DEFAULT_TIMESTAMP);
+        arrivalProfile.setText(AMQPPublisher.DEFAULT_ARRIVAL_PROFILE);
+        arrivalRate.setText("");
+        targetRate.setText("");
+        ratePeriod.setText("");
         messageRoutingKey.setText("");
+        routingKeyDistribution.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_DISTRIBUTION);
+        routingKeySpace.setText("");
+        routingKeyExponent.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_EXPONENT);
         messageType.setText("");
         replyToQueue.setText("");
         correlationId.setText("");
         headers.clearGui();
+        payload.setText(AMQPPublisher.DEFAULT_PAYLOAD);
+        payloadSize.setText("");
+        payloadMaxSize.setText("");
+        payloadSigma.setText(AMQPPublisher.DEFAULT_PAYLOAD_SIGMA);
+        payloadHistogramFile.setText("");
+        payloadPoolSize.setText(AMQPPublisher.DEFAULT_PAYLOAD_POOL_SIZE_STRING);
+        payloadPoolMaxMB.setText(AMQPPublisher.DEFAULT_PAYLOAD_POOL_MAX_MB_STRING);
+        payloadOrder.setText(AMQPPublisher.DEFAULT_PAYLOAD_ORDER);
+        corpusFile.setText("");
+        corpusOrder.setText(AMQPPublisher.DEFAULT_CORPUS_ORDER);
+        contentEncoding.setText(AMQPPublisher.DEFAULT_CONTENT_ENCODING);
         message.setText("");
     }
 
@@ -0,0 +1,94 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.*;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPRPCClient;
+
+/**
+ * GUI of the AMQP RPC client, the publisher's settings that apply to
+ * requests plus how replies are received.
+ */
+public class AMQPRPCClientGui extends AMQPPublisherGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private JPanel rpcPanel;
+
+    private JCheckBox directReplyTo = new JCheckBox("Use Direct Reply-to?", AMQPRPCClient.DEFAULT_DIRECT_REPLY_TO);
+    private JLabeledTextField replyTimeout = new JLabeledTextField("Reply Timeout (ms)");
+    private JLabeledTextField maxOutstanding = new JLabeledTextField("Max Outstanding Requests");
+
+    public AMQPRPCClientGui() {
+        hideOneWayOptions();
+        directReplyTo.setPreferredSize(new Dimension(100, 25));
+        replyTimeout.setPreferredSize(new Dimension(100, 25));
+        maxOutstanding.setPreferredSize(new Dimension(100, 25));
+        rpcPanel.add(directReplyTo);
+        rpcPanel.add(replyTimeout);
+        rpcPanel.add(maxOutstanding);
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP RPC Client";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPRPCClient)) return;
+        AMQPRPCClient sampler = (AMQPRPCClient) element;
+
+        directReplyTo.setSelected(sampler.getDirectReplyTo());
+        replyTimeout.setText(sampler.getReplyTimeout());
+        maxOutstanding.setText(sampler.getMaxOutstanding());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPRPCClient sampler = new AMQPRPCClient();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        super.modifyTestElement(te);
+        AMQPRPCClient sampler = (AMQPRPCClient) te;
+
+        sampler.setDirectReplyTo(directReplyTo.isSelected());
+        sampler.setReplyTimeout(replyTimeout.getText());
+        sampler.setMaxOutstanding(maxOutstanding.getText());
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        super.setMainPanel(panel);
+        rpcPanel = panel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        directReplyTo.setSelected(AMQPRPCClient.DEFAULT_DIRECT_REPLY_TO);
+        replyTimeout.setText(AMQPRPCClient.DEFAULT_TIMEOUT_STRING);
+        maxOutstanding.setText(AMQPRPCClient.DEFAULT_MAX_OUTSTANDING_STRING);
+    }
+}
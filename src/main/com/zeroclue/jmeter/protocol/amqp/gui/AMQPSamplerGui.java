@@ -42,9 +42,17 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
     protected JLabeledTextField timeout = new JLabeledTextField("Timeout");
     protected JLabeledTextField username = new JLabeledTextField("Username");
     protected JLabeledTextField password = new JLabeledTextField("Password");
+    protected JLabeledTextField channelsPerConnection = new JLabeledTextField("Channels per Connection");
     private final JCheckBox SSL = new JCheckBox("SSL?", false);
+    private final JCheckBox recovery = new JCheckBox("Recover?", AMQPSampler.DEFAULT_RECOVERY);
+    private final JLabeledTextField recoveryDelay = new JLabeledTextField("Recovery Delay (ms)");
+    private final JLabeledTextField recoveryMaxDelay = new JLabeledTextField("Recovery Max Delay (ms)");
+    private final JLabeledTextField recoveryTimeout = new JLabeledTextField("Recovery Timeout (ms)");
 
     private final JLabeledTextField iterations = new JLabeledTextField("Number of samples to Aggregate");
+    private final JLabeledTextField histogramLog = new JLabeledTextField("Latency Histogram Log File");
+    private final JLabeledTextField histogramInterval = new JLabeledTextField("Histogram Interval (s)");
+    private final JLabeledTextField subResultEvery = new JLabeledTextField("Sub-result every N Messages (0 = none)");
 
 
 
@@ -75,15 +83,30 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         timeout.setText(sampler.getTimeout());
         iterations.setText(sampler.getIterations());
+        histogramLog.setText(sampler.getHistogramLog());
+        histogramInterval.setText(sampler.getHistogramInterval());
+        subResultEvery.setText(sampler.getSubResultEvery());
 
         host.setText(sampler.getHost());
         port.setText(sampler.getPort());
         username.setText(sampler.getUsername());
         password.setText(sampler.getPassword());
+        channelsPerConnection.setText(sampler.getChannelsPerConnection());
         SSL.setSelected(sampler.connectionSSL());
+        recovery.setSelected(sampler.getRecovery());
+        recoveryDelay.setText(sampler.getRecoveryDelay());
+        recoveryMaxDelay.setText(sampler.getRecoveryMaxDelay());
+        recoveryTimeout.setText(sampler.getRecoveryTimeout());
         log.info("AMQPSamplerGui.configure() called");
     }
 
+    /**
+     * Enable or disable the sub-result option, for samplers that cannot record sub-results in every mode.
+     */
+    protected void setSubResultsEnabled(boolean enabled) {
+        subResultEvery.setEnabled(enabled);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -106,12 +129,20 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         timeout.setText(AMQPSampler.DEFAULT_TIMEOUT_STRING);
         iterations.setText(AMQPSampler.DEFAULT_ITERATIONS_STRING);
+        histogramLog.setText("");
+        histogramInterval.setText(AMQPSampler.DEFAULT_HISTOGRAM_INTERVAL_STRING);
+        subResultEvery.setText(AMQPSampler.DEFAULT_SUB_RESULT_EVERY_STRING);
 
         host.setText("localhost");
         port.setText(AMQPSampler.DEFAULT_PORT_STRING);
         username.setText("guest");
         password.setText("guest");
+        channelsPerConnection.setText(AMQPSampler.DEFAULT_CHANNELS_PER_CONNECTION_STRING);
         SSL.setSelected(false);
+        recovery.setSelected(AMQPSampler.DEFAULT_RECOVERY);
+        recoveryDelay.setText(AMQPSampler.DEFAULT_RECOVERY_DELAY_STRING);
+        recoveryMaxDelay.setText(AMQPSampler.DEFAULT_RECOVERY_MAX_DELAY_STRING);
+        recoveryTimeout.setText(AMQPSampler.DEFAULT_RECOVERY_TIMEOUT_STRING);
     }
 
     /**
@@ -139,12 +170,20 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         sampler.setTimeout(timeout.getText());
         sampler.setIterations(iterations.getText());
+        sampler.setHistogramLog(histogramLog.getText());
+        sampler.setHistogramInterval(histogramInterval.getText());
+        sampler.setSubResultEvery(subResultEvery.getText());
 
         sampler.setHost(host.getText());
         sampler.setPort(port.getText());
         sampler.setUsername(username.getText());
         sampler.setPassword(password.getText());
+        sampler.setChannelsPerConnection(channelsPerConnection.getText());
         sampler.setConnectionSSL(SSL.isSelected());
+        sampler.setRecovery(recovery.isSelected());
+        sampler.setRecoveryDelay(recoveryDelay.getText());
+        sampler.setRecoveryMaxDelay(recoveryMaxDelay.getText());
+        sampler.setRecoveryTimeout(recoveryTimeout.getText());
         log.info("AMQPSamplerGui.modifyTestElement() called, set user/pass to " + username.getText() + "/" + password.getText() + " on sampler " + sampler);
     }
 
@@ -159,6 +198,9 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
 
         iterations.setPreferredSize(new Dimension(50,25));
         mainPanel.add(iterations);
+        mainPanel.add(histogramLog);
+        mainPanel.add(histogramInterval);
+        mainPanel.add(subResultEvery);
 
         add(mainPanel);
 
@@ -276,6 +318,26 @@ public abstract class AMQPSamplerGui extends AbstractSamplerGui {
         gridBagConstraints.gridy = 5;
         serverSettings.add(timeout, gridBagConstraints);
 
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 6;
+        serverSettings.add(channelsPerConnection, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 7;
+        serverSettings.add(recoveryDelay, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 7;
+        serverSettings.add(recovery, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 8;
+        serverSettings.add(recoveryMaxDelay, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 9;
+        serverSettings.add(recoveryTimeout, gridBagConstraints);
+
         gridBagConstraintsCommon.gridx = 1;
         gridBagConstraintsCommon.gridy = 0;
 
@@ -46,6 +46,7 @@ public abstract class AMQPSamplerGuiSSL extends AbstractSamplerGui {
     protected JLabeledTextField timeout = new JLabeledTextField("Timeout");
     protected JLabeledTextField username = new JLabeledTextField("Username");
     protected JLabeledTextField password = new JLabeledTextField("Password");
+    protected JLabeledTextField channelsPerConnection = new JLabeledTextField("Channels per Connection");
     private final JCheckBox SSL = new JCheckBox("SSL?", false);
 
     private final JLabeledTextField iterations = new JLabeledTextField("Number of samples to Aggregate");
@@ -93,6 +94,7 @@ public abstract class AMQPSamplerGuiSSL extends AbstractSamplerGui {
         port.setText(sampler.getPort());
         username.setText(sampler.getUsername());
         password.setText(sampler.getPassword());
+        channelsPerConnection.setText(sampler.getChannelsPerConnection());
         SSL.setSelected(sampler.connectionSSL());
         log.info("AMQPSamplerGuiSSL.configure() called");
     }
@@ -133,6 +135,7 @@ public abstract class AMQPSamplerGuiSSL extends AbstractSamplerGui {
         port.setText(AMQPSamplerSSL.DEFAULT_PORT_STRING);
         username.setText("guest");
         password.setText("guest");
+        channelsPerConnection.setText(AMQPSamplerSSL.DEFAULT_CHANNELS_PER_CONNECTION_STRING);
         SSL.setSelected(false);
     }
 
@@ -175,6 +178,7 @@ public abstract class AMQPSamplerGuiSSL extends AbstractSamplerGui {
         sampler.setPort(port.getText());
         sampler.setUsername(username.getText());
         sampler.setPassword(password.getText());
+        sampler.setChannelsPerConnection(channelsPerConnection.getText());
         sampler.setConnectionSSL(SSL.isSelected());
         log.info("AMQPSamplerGuiSSL.modifyTestElement() called, set user/pass to " + username.getText() + "/" + password.getText() + " on sampler " + sampler);
     }
@@ -339,6 +343,10 @@ public abstract class AMQPSamplerGuiSSL extends AbstractSamplerGui {
         gridBagConstraints.gridy = 5;
         serverSettings.add(timeout, gridBagConstraints);
 
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 6;
+        serverSettings.add(channelsPerConnection, gridBagConstraints);
+
         gridBagConstraintsCommon.gridx = 1;
         gridBagConstraintsCommon.gridy = 0;
 
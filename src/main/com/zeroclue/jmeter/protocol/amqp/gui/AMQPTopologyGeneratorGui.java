@@ -0,0 +1,121 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPTopologyGenerator;
+
+/**
+ * GUI of the AMQP topology generator: the patterns of the queues and their
+ * binding keys, and how many channels declare them.
+ */
+public class AMQPTopologyGeneratorGui extends AMQPSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private JPanel mainPanel;
+
+    private JLabeledTextField queuePattern = new JLabeledTextField("Queue Pattern");
+    private JLabeledTextField bindingKeyPattern = new JLabeledTextField("Binding Key Pattern");
+    private JLabeledChoice action = new JLabeledChoice("Action", AMQPTopologyGenerator.ACTIONS);
+    private JLabeledTextField declareChannels = new JLabeledTextField("Declare Channels");
+
+    public AMQPTopologyGeneratorGui() {
+        init();
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected void init() {
+        super.init();
+
+        queuePattern.setPreferredSize(new Dimension(100, 25));
+        bindingKeyPattern.setPreferredSize(new Dimension(100, 25));
+        declareChannels.setPreferredSize(new Dimension(100, 25));
+
+        mainPanel.add(queuePattern);
+        mainPanel.add(bindingKeyPattern);
+        mainPanel.add(action);
+        mainPanel.add(declareChannels);
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP Topology Generator";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPTopologyGenerator)) return;
+        AMQPTopologyGenerator sampler = (AMQPTopologyGenerator) element;
+
+        queuePattern.setText(sampler.getQueuePattern());
+        bindingKeyPattern.setText(sampler.getBindingKeyPattern());
+        action.setText(sampler.getAction());
+        declareChannels.setText(sampler.getDeclareChannels());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPTopologyGenerator sampler = new AMQPTopologyGenerator();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQPTopologyGenerator sampler = (AMQPTopologyGenerator) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setQueuePattern(queuePattern.getText());
+        sampler.setBindingKeyPattern(bindingKeyPattern.getText());
+        sampler.setAction(action.getText());
+        sampler.setDeclareChannels(declareChannels.getText());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        queue.setText(""); // the generated queues take its place
+        queuePattern.setText("queue-{0..999}");
+        bindingKeyPattern.setText("key.{n}");
+        action.setText(AMQPTopologyGenerator.DEFAULT_ACTION);
+        declareChannels.setText(AMQPTopologyGenerator.DEFAULT_DECLARE_CHANNELS_STRING);
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel) {
+        mainPanel = panel;
+    }
+}